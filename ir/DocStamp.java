@@ -0,0 +1,73 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * The modification time, size and checksum of a file at the time it was
+ * indexed, used to find the files that have changed since.
+ */
+public class DocStamp {
+
+    /** Modification time of the file, in milliseconds. */
+    public final long modified;
+
+    /** Size of the file in bytes. */
+    public final long size;
+
+    /** CRC32 of the contents of the file. */
+    public final long checksum;
+
+    public DocStamp(long modified, long size, long checksum) {
+        this.modified = modified;
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    /** Returns the stamp of the file, with the checksum of its contents. */
+    public static DocStamp of(File f, long checksum) {
+        return new DocStamp(f.lastModified(), f.length(), checksum);
+    }
+
+    /**
+     * Returns true if the file has the same contents as when it was stamped. The
+     * contents are only read if the modification time or size have changed.
+     */
+    public boolean isUnchanged(File f) throws IOException {
+        if (f.lastModified() == modified && f.length() == size)
+            return true;
+        return f.length() == size && checksumOf(f) == checksum;
+    }
+
+    /** Opens the file for reading, computing the CRC32 of the bytes read. */
+    public static CheckedInputStream openChecked(File f) throws IOException {
+        return new CheckedInputStream(new FileInputStream(f), new CRC32());
+    }
+
+    /** Returns the CRC32 of the contents of the file. */
+    public static long checksumOf(File f) throws IOException {
+        try (CheckedInputStream in = openChecked(f)) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) >= 0) {
+            }
+            return in.getChecksum().getValue();
+        }
+    }
+
+    /** Formats the stamp as it is stored in the docInfo file. */
+    public String format() {
+        return modified + ";" + size + ";" + checksum;
+    }
+
+    /** Parses a stamp from the docInfo fields starting at <code>from</code>. */
+    public static DocStamp parse(String[] fields, int from) {
+        return new DocStamp(Long.parseLong(fields[from]), Long.parseLong(fields[from + 1]),
+                Long.parseLong(fields[from + 2]));
+    }
+}
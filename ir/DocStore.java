@@ -0,0 +1,186 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The names, lengths and file stamps of the documents of an index, in a binary
+ * file that is memory-mapped when it is opened.
+ *
+ * After the header comes one fixed-width record for every docID below
+ * <code>numDocIDs</code>: the length of the document (-1 if there is no
+ * document with that docID), the length and offset of its name in the string
+ * heap, and the modification time, size and checksum of its file. The string
+ * heap, the UTF-8 names one after the other, follows the records. A lookup
+ * reads one record at a fixed position, so opening the store takes the same
+ * time however many documents it has, and nothing is parsed or boxed.
+ */
+public class DocStore {
+
+    /** Written at the start of the file. */
+    public static final int MAGIC = 0x49524453; // "IRDS"
+
+    public static final int VERSION = 1;
+
+    /** Header: magic, version, number of docIDs, number of documents. */
+    static final int HEADER_SIZE = 16;
+
+    /** Record: length, name length, name offset, modified, size, checksum. */
+    static final int RECORD_SIZE = 40;
+
+    private final MappedFile file;
+
+    private final int numDocIDs;
+
+    private final int numDocs;
+
+    /** Position of the string heap. */
+    private final long heapStart;
+
+    /** An empty store. */
+    public DocStore() {
+        file = null;
+        numDocIDs = 0;
+        numDocs = 0;
+        heapStart = 0;
+    }
+
+    /**
+     * Opens a store written by a Writer.
+     */
+    public DocStore(File f) throws IOException {
+        file = new MappedFile(f);
+        if (file.length() < HEADER_SIZE || file.getInt(0) != MAGIC)
+            throw new IOException(f + " is not a document store (the index has to be rebuilt)");
+        if (file.getInt(4) != VERSION)
+            throw new IOException("Unsupported document store version " + file.getInt(4));
+        numDocIDs = file.getInt(8);
+        numDocs = file.getInt(12);
+        heapStart = HEADER_SIZE + (long) numDocIDs * RECORD_SIZE;
+    }
+
+    /** Number of documents in the store. */
+    public int numDocs() {
+        return numDocs;
+    }
+
+    /** All docIDs of the store are below this. */
+    public int numDocIDs() {
+        return numDocIDs;
+    }
+
+    private long record(int docID) {
+        return HEADER_SIZE + (long) docID * RECORD_SIZE;
+    }
+
+    public boolean contains(int docID) {
+        return docID >= 0 && docID < numDocIDs && file.getInt(record(docID)) >= 0;
+    }
+
+    /** Returns the length of the document, or -1 if it is not in the store. */
+    public int getLength(int docID) {
+        if (docID < 0 || docID >= numDocIDs)
+            return -1;
+        return file.getInt(record(docID));
+    }
+
+    /** Returns the name of the document, or null if it is not in the store. */
+    public String getName(int docID) {
+        if (!contains(docID))
+            return null;
+        long rec = record(docID);
+        byte[] name = new byte[file.getInt(rec + 4)];
+        long pos = heapStart + file.getLong(rec + 8);
+        for (int i = 0; i < name.length; i++)
+            name[i] = file.get(pos + i);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the stamp of the document's file, or null if it is not in the store
+     * or was stored without a stamp.
+     */
+    public DocStamp getStamp(int docID) {
+        if (!contains(docID))
+            return null;
+        long rec = record(docID);
+        long size = file.getLong(rec + 24);
+        if (size < 0)
+            return null;
+        return new DocStamp(file.getLong(rec + 16), size, file.getLong(rec + 32));
+    }
+
+    /**
+     * Writes a store. The documents must be added in increasing docID order.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileOutputStream fout;
+
+        private final DataOutputStream out;
+
+        private final int numDocIDs;
+
+        private int numDocs = 0;
+
+        /** The next docID that has no record yet. */
+        private int next = 0;
+
+        /** The names, written after the records. */
+        private final ByteArrayOutputStream heap = new ByteArrayOutputStream();
+
+        /**
+         * Creates a store for the docIDs below <code>numDocIDs</code>.
+         */
+        public Writer(File f, int numDocIDs) throws IOException {
+            this.numDocIDs = numDocIDs;
+            fout = new FileOutputStream(f);
+            out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16));
+            // The number of documents is filled in by close()
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numDocIDs);
+            out.writeInt(0);
+        }
+
+        public void add(int docID, String name, int length, DocStamp stamp) throws IOException {
+            if (docID < next || docID >= numDocIDs)
+                throw new IllegalArgumentException("docID " + docID + " out of order");
+            while (next < docID) {
+                writeRecord(-1, 0, 0L, null);
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeRecord(length, bytes.length, heap.size(), stamp);
+            heap.write(bytes);
+            numDocs++;
+        }
+
+        private void writeRecord(int length, int nameLength, long nameOffset, DocStamp stamp) throws IOException {
+            out.writeInt(length);
+            out.writeInt(nameLength);
+            out.writeLong(nameOffset);
+            out.writeLong(stamp == null ? 0L : stamp.modified);
+            out.writeLong(stamp == null ? -1L : stamp.size);
+            out.writeLong(stamp == null ? 0L : stamp.checksum);
+            next++;
+        }
+
+        /** Writes the names and the header, and syncs the file to disk. */
+        public void close() throws IOException {
+            while (next < numDocIDs) {
+                writeRecord(-1, 0, 0L, null);
+            }
+            heap.writeTo(out);
+            out.flush();
+            fout.getChannel().write(ByteBuffer.allocate(4).putInt(0, numDocs), 12);
+            fout.getFD().sync();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+
+/**
+ * The names, lengths and file stamps of the documents of one index, in an
+ * array indexed by docID.
+ *
+ * Changes are made under the table's lock, while any number of threads read
+ * it without locking. What the table holds about a document is an immutable
+ * record, which a change replaces as a whole, so a reader never sees half of
+ * a change to a document. The counts are only raised in a new Contents object
+ * written to a volatile field after the records, so a reader that has read the
+ * field sees every record within its limit as it was at least at that point.
+ * Separate reads of one document may still see it before and after a change.
+ */
+public class DocTable {
+
+    /** What the table holds about one document. */
+    private static class Doc {
+        final String name;
+        final int length;
+        final DocStamp stamp;
+
+        Doc(String name, int length, DocStamp stamp) {
+            this.name = name;
+            this.length = length;
+            this.stamp = stamp;
+        }
+    }
+
+    /** The records of a table and their counts, as seen by readers. */
+    private static class Contents {
+        final Doc[] docs;
+
+        /** Number of documents with a name. */
+        final int numDocs;
+
+        /** All docIDs in the table are below this. */
+        final int limit;
+
+        Contents(Doc[] docs, int numDocs, int limit) {
+            this.docs = docs;
+            this.numDocs = numDocs;
+            this.limit = limit;
+        }
+    }
+
+    private volatile Contents contents = new Contents(new Doc[16], 0, 0);
+
+    /**
+     * Replaces the record of a document and publishes the new counts. The array
+     * is replaced by a larger copy if the docID does not fit. Must hold the lock.
+     */
+    private void set(int docID, Doc doc) {
+        if (docID < 0)
+            throw new IllegalArgumentException("Negative docID " + docID);
+        Contents c = contents;
+        Doc[] docs = c.docs;
+        if (docID >= docs.length)
+            docs = Arrays.copyOf(docs, Math.max(2 * docs.length, docID + 1));
+        boolean had = docs[docID] != null && docs[docID].name != null;
+        boolean has = doc != null && doc.name != null;
+        docs[docID] = doc;
+        int numDocs = c.numDocs + (has ? 1 : 0) - (had ? 1 : 0);
+        int limit = doc != null ? Math.max(c.limit, docID + 1) : c.limit;
+        // Written last, so that a reader of the counts sees the record
+        contents = new Contents(docs, numDocs, limit);
+    }
+
+    private Doc get(int docID) {
+        Contents c = contents;
+        return docID >= 0 && docID < c.limit ? c.docs[docID] : null;
+    }
+
+    /** Adds a document, or replaces the name, length and stamp of one. */
+    public synchronized void put(int docID, String name, int length, DocStamp stamp) {
+        set(docID, new Doc(name, length, stamp));
+    }
+
+    /**
+     * Sets the stamp of a document's file. The table may hold the stamp of a
+     * document that it otherwise does not contain.
+     */
+    public synchronized void setStamp(int docID, DocStamp stamp) {
+        Doc doc = get(docID);
+        set(docID, doc != null ? new Doc(doc.name, doc.length, stamp) : new Doc(null, -1, stamp));
+    }
+
+    /** Removes everything the table holds about a document. */
+    public synchronized void remove(int docID) {
+        if (get(docID) != null)
+            set(docID, null);
+    }
+
+    /** Removes all documents. */
+    public synchronized void clear() {
+        contents = new Contents(new Doc[16], 0, 0);
+    }
+
+    public boolean contains(int docID) {
+        return getName(docID) != null;
+    }
+
+    /** Returns the name of the document, or null if it is not in the table. */
+    public String getName(int docID) {
+        Doc doc = get(docID);
+        return doc == null ? null : doc.name;
+    }
+
+    /** Returns the length of the document, or -1 if it is not in the table. */
+    public int getLength(int docID) {
+        Doc doc = get(docID);
+        return doc == null ? -1 : doc.length;
+    }
+
+    /** Returns the stamp of the document's file, or null if there is none. */
+    public DocStamp getStamp(int docID) {
+        Doc doc = get(docID);
+        return doc == null ? null : doc.stamp;
+    }
+
+    /** Number of documents in the table. */
+    public int size() {
+        return contents.numDocs;
+    }
+
+    /** All docIDs in the table are below this. */
+    public int limit() {
+        return contents.limit;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+
+/**
+ * The tokens of one document grouped by term: every distinct term with the
+ * offsets at which it occurs, in the order of first occurrence. The indexer
+ * builds one per document and hands it to Index.insertDocument, so the index
+ * looks up every term once per document instead of once per occurrence.
+ */
+public class DocumentTerms {
+
+    /** The number of each term in the arrays below. */
+    private final HashMap<String, Integer> numbers = new HashMap<String, Integer>();
+
+    private String[] terms = new String[16];
+
+    /** The offsets of the ith term are <code>positions[i][0 .. tfs[i]-1]</code>. */
+    private int[][] positions = new int[16][];
+
+    private int[] tfs = new int[16];
+
+    /** Set by the index for the terms it did not have before. */
+    private boolean[] isNew = new boolean[16];
+
+    private int size = 0;
+
+    /** Number of tokens added. */
+    private int length = 0;
+
+    /**
+     * Adds an occurrence of the term. Offsets must be added in increasing order.
+     */
+    public void add(String term, int offset) {
+        Integer i = numbers.get(term);
+        if (i == null) {
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, 2 * size);
+                positions = Arrays.copyOf(positions, 2 * size);
+                tfs = Arrays.copyOf(tfs, 2 * size);
+                isNew = Arrays.copyOf(isNew, 2 * size);
+            }
+            i = size++;
+            numbers.put(term, i);
+            terms[i] = term;
+            positions[i] = new int[4];
+            tfs[i] = 0;
+            isNew[i] = false;
+        }
+        if (tfs[i] == positions[i].length)
+            positions[i] = Arrays.copyOf(positions[i], 2 * tfs[i]);
+        positions[i][tfs[i]++] = offset;
+        length++;
+    }
+
+    /** Number of distinct terms. */
+    public int size() {
+        return size;
+    }
+
+    /** Number of tokens of the document. */
+    public int length() {
+        return length;
+    }
+
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    /** Number of occurrences of the ith term. */
+    public int getTf(int i) {
+        return tfs[i];
+    }
+
+    /**
+     * Returns the offsets of the ith term in the first <code>getTf(i)</code>
+     * cells of the array.
+     */
+    public int[] getPositions(int i) {
+        return positions[i];
+    }
+
+    /** Records whether the ith term was new to the index. */
+    public void setNew(int i, boolean isNew) {
+        this.isNew[i] = isNew;
+    }
+
+    public boolean isNew(int i) {
+        return isNew[i];
+    }
+}
@@ -20,7 +20,7 @@ public class Engine {
     // Index index = new PersistentHashedIndex();
     PageRank pageRank = new PageRank();
     HITSRanker hitsRanker = new HITSRanker();
-    TFIDF tfidf = new TFIDF(index);
+    TFIDF tfidf;
     /** The indexer creating the search index. */
     Indexer indexer;
 
@@ -31,7 +31,7 @@ public class Engine {
     Searcher searcher;
 
     /** Spell checker */
-    SpellChecker speller = new SpellChecker(index, kgIndex);
+    SpellChecker speller;
 
     /** The engine GUI. */
     SearchGUI gui;
@@ -39,7 +39,10 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
+    /**
+     * Lock to prevent simultaneous access to the index. Not taken for a
+     * concurrent index, which may be searched while it is built.
+     */
     Object indexLock = new Object();
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
@@ -54,6 +57,12 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Only index the new and changed files, and drop the removed ones. */
+    boolean is_updating = false;
+
+    /** Number of threads used for indexing. */
+    int num_threads = 1;
+
     /* ----------------------------------------------- */
 
     /**
@@ -61,31 +70,76 @@ public class Engine {
      */
     public Engine(String[] args) {
         decodeArgs(args);
-        indexer = new Indexer(index, kgIndex, patterns_file);
+        tfidf = new TFIDF(index);
+        speller = new SpellChecker(index, kgIndex);
+        indexer = new Indexer(index, kgIndex, patterns_file, num_threads);
         // searcher = new Searcher(index, kgIndex);
-        searcher = new Searcher(index, kgIndex, pageRank, hitsRanker, tfidf);
+        if (index instanceof PartitionedIndex) {
+            searcher = new PartitionedSearcher((PartitionedIndex) index, kgIndex, pageRank, hitsRanker, tfidf);
+        } else if (index instanceof RemoteIndex) {
+            searcher = new RemoteSearcher((RemoteIndex) index, kgIndex, pageRank, hitsRanker, tfidf);
+        } else {
+            searcher = new Searcher(index, kgIndex, pageRank, hitsRanker, tfidf);
+        }
         gui = new SearchGUI(this);
         gui.init();
         /*
          * Calls the indexer to index the chosen directory structure. Access to the
          * index is synchronized since we don't want to search at the same time we're
-         * indexing new files (this might corrupt the index).
+         * indexing new files (this might corrupt the index), unless the index is
+         * concurrent and can be searched while it is built.
          */
         if (is_indexing) {
-            synchronized (indexLock) {
-                gui.displayInfoText("Indexing, please wait...");
-                long startTime = System.currentTimeMillis();
-                for (int i = 0; i < dirNames.size(); i++) {
-                    File dokDir = new File(dirNames.get(i));
-                    indexer.processFiles(dokDir, is_indexing);
+            if (index.isConcurrent()) {
+                indexDirectories();
+            } else {
+                synchronized (indexLock) {
+                    indexDirectories();
                 }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
-                index.cleanup();
             }
         } else {
             gui.displayInfoText("Index is loaded from disk");
         }
+        // Share the vocabulary of the index with the k-gram index
+        synchronized (indexLock) {
+            if (index.getTermAutomaton() != null) {
+                kgIndex.setTermAutomaton(index.getTermAutomaton());
+            }
+        }
+    }
+
+    private void indexDirectories() {
+        gui.displayInfoText("Indexing, please wait...");
+        long startTime = System.currentTimeMillis();
+        if (is_updating) {
+            indexer.update(dirNames);
+        } else {
+            indexer.indexAll(dirNames);
+        }
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        gui.displayInfoText(String.format("Indexing done in %.1f seconds.", elapsedTime / 1000.0));
+        index.cleanup();
+    }
+
+    /**
+     * Searches the index. Unless the index is concurrent, the search waits
+     * until the index has been built.
+     */
+    PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
+        if (index.isConcurrent())
+            return searcher.search(query, queryType, rankingType);
+        synchronized (indexLock) {
+            return searcher.search(query, queryType, rankingType);
+        }
+    }
+
+    /** Returns spelling corrections of the query; see search for the locking. */
+    String[] checkSpelling(Query query, int limit) {
+        if (index.isConcurrent())
+            return speller.check(query, limit);
+        synchronized (indexLock) {
+            return speller.check(query, limit);
+        }
     }
 
     /* ----------------------------------------------- */
@@ -116,14 +170,41 @@ public class Engine {
                 if (i < args.length) {
                     rank_file = args[i++];
                 }
+            } else if ("-t".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    num_threads = Integer.parseInt(args[i++]);
+                }
             } else if ("-ni".equals(args[i])) {
                 i++;
                 is_indexing = false;
+            } else if ("-u".equals(args[i])) {
+                i++;
+                is_updating = true;
+            } else if ("-c".equals(args[i])) {
+                i++;
+                index = new ShardedIndex();
+            } else if ("-P".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    index = new PartitionedIndex(Integer.parseInt(args[i++]), kgIndex.getK());
+                }
+            } else if ("-nodes".equals(args[i])) {
+                i++;
+                if (i < args.length) {
+                    index = new RemoteIndex(RemoteIndex.parseAddresses(args[i++]));
+                }
             } else {
                 System.err.println("Unknown option: " + args[i]);
                 break;
             }
         }
+        if (index instanceof RemoteIndex) {
+            // The index is held by SearchNodes, which build it themselves
+            if (!dirNames.isEmpty() || is_updating)
+                System.err.println("-d and -u are ignored with -nodes; the documents are indexed by the search nodes");
+            is_indexing = false;
+        }
     }
 
     /* ----------------------------------------------- */
@@ -0,0 +1,312 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * The forward index of a segment: for every document of the segment, its
+ * distinct terms as term IDs of the segment's TermAutomaton, each with the
+ * number of times it occurs in the document. The file is memory-mapped when it
+ * is opened.
+ *
+ * After the header come the term vectors of the documents in docID order, each
+ * as the number of terms followed by the gap to the previous term ID and the
+ * term frequency of every term, all as variable-byte integers. Then follows the
+ * position of the vector of every docID from <code>firstDocID</code> up to the
+ * last document of the segment, and the end of the last vector; a docID that
+ * is not in the segment has an empty vector.
+ */
+public class ForwardIndex {
+
+    /** Written at the start of the file. */
+    public static final int MAGIC = 0x49524657; // "IRFW"
+
+    public static final int VERSION = 1;
+
+    /**
+     * Largest number of (document, term) entries a Writer keeps in memory before
+     * it writes them to a temporary file.
+     */
+    public static final int WRITE_BUFFER_ENTRIES = 1 << 20;
+
+    /** Header: magic, version, first docID, number of docIDs, position of the vector positions. */
+    static final int HEADER_SIZE = 24;
+
+    private final MappedFile file;
+
+    private final int firstDocID;
+
+    private final int numDocIDs;
+
+    /** Position of the table of vector positions. */
+    private final long positions;
+
+    /**
+     * Opens a forward index written by a Writer.
+     */
+    public ForwardIndex(File f) throws IOException {
+        file = new MappedFile(f);
+        if (file.length() < HEADER_SIZE || file.getInt(0) != MAGIC)
+            throw new IOException(f + " is not a forward index (the index has to be rebuilt)");
+        if (file.getInt(4) != VERSION)
+            throw new IOException("Unsupported forward index version " + file.getInt(4));
+        firstDocID = file.getInt(8);
+        numDocIDs = file.getInt(12);
+        positions = file.getLong(16);
+    }
+
+    /**
+     * Returns the terms of the document, as term IDs of <code>terms</code>, or
+     * null if the document is not in the segment.
+     */
+    public TermVector getTermVector(int docID, TermAutomaton terms) {
+        int d = docID - firstDocID;
+        if (d < 0 || d >= numDocIDs)
+            return null;
+        long[] pos = { file.getLong(positions + 8L * d) };
+        if (pos[0] == file.getLong(positions + 8L * (d + 1)))
+            return null;
+        int[] termIDs = new int[file.readVByte(pos)];
+        int[] tfs = new int[termIDs.length];
+        int termID = 0;
+        for (int i = 0; i < termIDs.length; i++) {
+            termID += file.readVByte(pos);
+            termIDs[i] = termID;
+            tfs[i] = file.readVByte(pos);
+        }
+        return new TermVector(termIDs, tfs, terms);
+    }
+
+    /**
+     * Collects the term frequencies of the documents from the encoded postings
+     * lists of a segment, and writes the forward index.
+     *
+     * The postings come term by term, and the forward index is written document
+     * by document. The (document, term, tf) entries are kept in a buffer of at
+     * most WRITE_BUFFER_ENTRIES entries. A full buffer is sorted by docID and
+     * written to a temporary file, like the runs of PersistentHashedIndex, and
+     * the files are merged when the forward index is written.
+     */
+    public static class Writer {
+
+        /** The directory for the temporary files. */
+        private final File dir;
+
+        /** The buffered entries, in the order they were added. */
+        private int[] docIDs = new int[1024];
+        private int[] termNumbers = new int[1024];
+        private int[] tfs = new int[1024];
+        private int size = 0;
+
+        /** The temporary files of the buffers written so far. */
+        private final ArrayList<File> spills = new ArrayList<File>();
+
+        private int firstDocID = Integer.MAX_VALUE;
+        private int lastDocID = -1;
+
+        public Writer(File dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Adds the documents of an encoded postings list (see PostingsCodec) to the
+         * vectors; <code>term</code> is the number of terms added before it.
+         */
+        public void add(int term, byte[] postings) throws IOException {
+            int[] pos = { 4 };
+            int numDocs = PostingsCodec.readVByte(postings, pos);
+            int docID = 0;
+            for (int d = 0; d < numDocs; d++) {
+                docID += PostingsCodec.readVByte(postings, pos);
+                int tf = PostingsCodec.readVByte(postings, pos);
+                for (int k = 0; k < tf; k++) {
+                    PostingsCodec.readVByte(postings, pos);
+                }
+                if (size == docIDs.length) {
+                    if (size >= WRITE_BUFFER_ENTRIES) {
+                        spill();
+                    } else {
+                        int capacity = Math.min(2 * size, WRITE_BUFFER_ENTRIES);
+                        docIDs = Arrays.copyOf(docIDs, capacity);
+                        termNumbers = Arrays.copyOf(termNumbers, capacity);
+                        tfs = Arrays.copyOf(tfs, capacity);
+                    }
+                }
+                docIDs[size] = docID;
+                termNumbers[size] = term;
+                tfs[size] = tf;
+                size++;
+                firstDocID = Math.min(firstDocID, docID);
+                lastDocID = Math.max(lastDocID, docID);
+            }
+        }
+
+        /**
+         * Returns the order of the buffered entries sorted by docID, as the
+         * docID in the high and the buffer index in the low half of each long.
+         */
+        private long[] sortBuffer() {
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) docIDs[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            return order;
+        }
+
+        /** Writes the buffer to a new temporary file, sorted by docID, and empties it. */
+        private void spill() throws IOException {
+            File spill = new File(dir, PersistentHashedIndex.FORWARD_FNAME + ".tmp" + spills.size());
+            long[] order = sortBuffer();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(spill), 1 << 16))) {
+                out.writeInt(size);
+                for (long entry : order) {
+                    int i = (int) entry;
+                    out.writeInt(docIDs[i]);
+                    out.writeInt(termNumbers[i]);
+                    out.writeInt(tfs[i]);
+                }
+            }
+            spills.add(spill);
+            size = 0;
+        }
+
+        /**
+         * Reads the entries of a temporary file, or of the sorted buffer, one at
+         * a time in docID order.
+         */
+        private class Run {
+            final DataInputStream in;
+            final long[] order;
+            int remaining;
+            int docID;
+            int termNumber;
+            int tf;
+
+            Run(File spill) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), 1 << 16));
+                order = null;
+                remaining = in.readInt();
+            }
+
+            Run(long[] order) {
+                in = null;
+                this.order = order;
+                remaining = order.length;
+            }
+
+            /** Moves to the next entry, returns false after the last one. */
+            boolean advance() throws IOException {
+                if (remaining == 0) {
+                    if (in != null)
+                        in.close();
+                    return false;
+                }
+                remaining--;
+                if (in != null) {
+                    docID = in.readInt();
+                    termNumber = in.readInt();
+                    tf = in.readInt();
+                } else {
+                    int i = (int) order[order.length - remaining - 1];
+                    docID = docIDs[i];
+                    termNumber = termNumbers[i];
+                    tf = tfs[i];
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Writes the forward index and syncs it to disk. <code>termIDs</code> maps
+         * the number of each term in the order it was added to its term ID.
+         */
+        public void write(File f, int[] termIDs) throws IOException {
+            int numDocIDs = lastDocID < 0 ? 0 : lastDocID - firstDocID + 1;
+            int first = lastDocID < 0 ? 0 : firstDocID;
+            PriorityQueue<Run> queue = new PriorityQueue<Run>(spills.size() + 1,
+                    (a, b) -> Integer.compare(a.docID, b.docID));
+            try {
+                for (File spill : spills) {
+                    Run run = new Run(spill);
+                    if (run.advance())
+                        queue.add(run);
+                }
+                Run buffered = new Run(sortBuffer());
+                if (buffered.advance())
+                    queue.add(buffered);
+                long[] vectorStart = new long[numDocIDs + 1];
+                FileOutputStream fout = new FileOutputStream(f);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16))) {
+                    // The position of the table is filled in at the end
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(first);
+                    out.writeInt(numDocIDs);
+                    out.writeLong(0L);
+                    long pos = HEADER_SIZE;
+                    ByteArrayOutputStream vector = new ByteArrayOutputStream();
+                    long[] sorted = new long[16];
+                    int d = 0;
+                    while (!queue.isEmpty()) {
+                        int docID = queue.peek().docID;
+                        // Documents without terms in the segment have empty vectors
+                        for (; first + d <= docID; d++) {
+                            vectorStart[d] = pos;
+                        }
+                        int n = 0;
+                        while (!queue.isEmpty() && queue.peek().docID == docID) {
+                            Run run = queue.poll();
+                            boolean more;
+                            do {
+                                if (n == sorted.length)
+                                    sorted = Arrays.copyOf(sorted, 2 * n);
+                                sorted[n++] = ((long) termIDs[run.termNumber] << 32) | run.tf;
+                            } while ((more = run.advance()) && run.docID == docID);
+                            if (more)
+                                queue.add(run);
+                        }
+                        Arrays.sort(sorted, 0, n);
+                        vector.reset();
+                        PostingsCodec.writeVByte(vector, n);
+                        int last = 0;
+                        for (int i = 0; i < n; i++) {
+                            int termID = (int) (sorted[i] >>> 32);
+                            PostingsCodec.writeVByte(vector, termID - last);
+                            PostingsCodec.writeVByte(vector, (int) sorted[i]);
+                            last = termID;
+                        }
+                        vector.writeTo(out);
+                        pos += vector.size();
+                    }
+                    for (; d <= numDocIDs; d++) {
+                        vectorStart[d] = pos;
+                    }
+                    for (long start : vectorStart) {
+                        out.writeLong(start);
+                    }
+                    out.flush();
+                    fout.getChannel().write(ByteBuffer.allocate(8).putLong(0, pos), 16);
+                    fout.getFD().sync();
+                }
+            } finally {
+                for (Run run : queue) {
+                    if (run.in != null)
+                        run.in.close();
+                }
+                for (File spill : spills) {
+                    spill.delete();
+                }
+                spills.clear();
+                size = 0;
+            }
+        }
+    }
+}
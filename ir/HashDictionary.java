@@ -0,0 +1,280 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The on-disk dictionary of the PersistentHashedIndex: an open-addressing hash
+ * table from terms to the position of their postings in the data file.
+ *
+ * The table is an array of buckets of <code>SLOTS_PER_BUCKET</code> slots.
+ * A bucket is 256 bytes and buckets start at multiples of 256 bytes, so a
+ * bucket never crosses a page boundary and a lookup normally reads one page of
+ * the dictionary. A term hashes to a bucket and takes the first free slot in it;
+ * if the bucket is full it overflows into the next one (linear probing between
+ * buckets). A lookup scans buckets until it finds the term or an empty slot.
+ *
+ * Each slot holds the 64-bit hash of the term, the position of the term in the
+ * data file, the length of the term and of its postings record, and the
+ * document frequency. The term bytes themselves are stored in the data file
+ * directly before the postings, so a hit is verified exactly against the term
+ * while reading the page that holds the postings anyway.
+ *
+ * The file starts with a header occupying the first bucket: magic number,
+ * version, number of buckets and number of terms. The table is built in memory
+ * by a Builder, which doubles the number of buckets and rehashes whenever the
+ * load factor would exceed <code>MAX_LOAD_FACTOR</code>.
+ */
+public class HashDictionary {
+
+    /** Written at the start of the dictionary file. */
+    public static final int MAGIC = 0x49524448; // "IRDH"
+
+    /** Version of the dictionary format. */
+    public static final int VERSION = 1;
+
+    /** Size of a slot: hash 8, pointer 8, postings size 4, df 4, term length 4, unused 4. */
+    static final int SLOT_SIZE = 32;
+
+    static final int SLOTS_PER_BUCKET = 8;
+
+    static final int BUCKET_SIZE = SLOT_SIZE * SLOTS_PER_BUCKET;
+
+    /** The header takes up one bucket, so that the buckets stay aligned. */
+    static final int HEADER_SIZE = BUCKET_SIZE;
+
+    /** The table is grown when more than this fraction of the slots is used. */
+    public static final double MAX_LOAD_FACTOR = 0.7;
+
+    /** The mapped dictionary file. */
+    private final MappedFile file;
+
+    /** Number of buckets, a power of two. */
+    private final int numBuckets;
+
+    private final int numTerms;
+
+    /**
+     * Opens a dictionary file written by a Builder.
+     */
+    public HashDictionary(File dictionaryFile) throws IOException {
+        file = new MappedFile(dictionaryFile);
+        if (file.length() < HEADER_SIZE || file.getInt(0) != MAGIC)
+            throw new IOException(dictionaryFile + " is not a dictionary file");
+        int version = file.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported dictionary format version " + version);
+        numBuckets = file.getInt(8);
+        numTerms = file.getInt(12);
+    }
+
+    public int numTerms() {
+        return numTerms;
+    }
+
+    /**
+     * Returns the hash of the UTF-8 bytes of a term. 0 marks an empty slot and is
+     * never returned.
+     */
+    public static long hash(byte[] term) {
+        long h = murmur64(term, term.length);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Returns the position of the slot of the term in the dictionary file, or -1
+     * if the term is not in the dictionary. The candidates are verified against
+     * the term bytes stored in the data file.
+     */
+    public long find(byte[] term, MappedFile data) {
+        long h = hash(term);
+        int bucket = (int) (h & (numBuckets - 1));
+        for (int probed = 0; probed < numBuckets; probed++) {
+            long base = HEADER_SIZE + (long) bucket * BUCKET_SIZE;
+            for (int s = 0; s < SLOTS_PER_BUCKET; s++) {
+                long slot = base + s * SLOT_SIZE;
+                long slotHash = file.getLong(slot);
+                if (slotHash == 0)
+                    return -1;
+                if (slotHash == h && getTermLength(slot) == term.length && termEquals(term, data, getPointer(slot)))
+                    return slot;
+            }
+            bucket = (bucket + 1) & (numBuckets - 1);
+        }
+        return -1;
+    }
+
+    private static boolean termEquals(byte[] term, MappedFile data, long ptr) {
+        for (int i = 0; i < term.length; i++) {
+            if (data.get(ptr + i) != term[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Position of the term bytes in the data file; the postings follow them. */
+    public long getPointer(long slot) {
+        return file.getLong(slot + 8);
+    }
+
+    /** Number of bytes of the postings record. */
+    public int getSize(long slot) {
+        return file.getInt(slot + 16);
+    }
+
+    public int getDocumentFrequency(long slot) {
+        return file.getInt(slot + 20);
+    }
+
+    /** Number of bytes of the term. */
+    public int getTermLength(long slot) {
+        return file.getInt(slot + 24);
+    }
+
+    /**
+     * Builds a dictionary in memory and writes it to file. Terms must be added at
+     * most once.
+     */
+    public static class Builder {
+
+        private int numBuckets = 16;
+
+        private int numTerms = 0;
+
+        private long[] hashes;
+        private long[] ptrs;
+        private int[] sizes;
+        private int[] dfs;
+        private int[] termLengths;
+
+        public Builder() {
+            allocate(numBuckets * SLOTS_PER_BUCKET);
+        }
+
+        private void allocate(int numSlots) {
+            hashes = new long[numSlots];
+            ptrs = new long[numSlots];
+            sizes = new int[numSlots];
+            dfs = new int[numSlots];
+            termLengths = new int[numSlots];
+        }
+
+        /**
+         * Adds a term whose bytes are stored at <code>ptr</code> in the data file,
+         * followed by a postings record of <code>size</code> bytes.
+         */
+        public void add(byte[] term, long ptr, int size, int df) {
+            if (numTerms + 1 > MAX_LOAD_FACTOR * numBuckets * SLOTS_PER_BUCKET)
+                grow();
+            place(hash(term), ptr, size, df, term.length);
+            numTerms++;
+        }
+
+        /** Puts an entry in the first free slot from its home bucket on. */
+        private void place(long h, long ptr, int size, int df, int termLength) {
+            int slot = (int) (h & (numBuckets - 1)) * SLOTS_PER_BUCKET;
+            while (hashes[slot] != 0) {
+                slot = (slot + 1) % hashes.length;
+            }
+            hashes[slot] = h;
+            ptrs[slot] = ptr;
+            sizes[slot] = size;
+            dfs[slot] = df;
+            termLengths[slot] = termLength;
+        }
+
+        /** Doubles the number of buckets and rehashes all entries. */
+        private void grow() {
+            long[] oldHashes = hashes;
+            long[] oldPtrs = ptrs;
+            int[] oldSizes = sizes;
+            int[] oldDfs = dfs;
+            int[] oldTermLengths = termLengths;
+            numBuckets *= 2;
+            allocate(numBuckets * SLOTS_PER_BUCKET);
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] != 0)
+                    place(oldHashes[i], oldPtrs[i], oldSizes[i], oldDfs[i], oldTermLengths[i]);
+            }
+        }
+
+        public int numTerms() {
+            return numTerms;
+        }
+
+        public void write(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(numBuckets).putInt(numTerms);
+                out.write(header.array());
+                for (int i = 0; i < hashes.length; i++) {
+                    out.writeLong(hashes[i]);
+                    out.writeLong(ptrs[i]);
+                    out.writeInt(sizes[i]);
+                    out.writeInt(dfs[i]);
+                    out.writeInt(termLengths[i]);
+                    out.writeInt(0);
+                }
+            }
+        }
+    }
+
+    // murmur hash code credit:
+    // https://github.com/tnm/murmurhash-java/blob/master/src/main/java/ie/ucd/murmur/MurmurHash.java
+    public static long murmur64(final byte[] data, int length) {
+
+        final int seed = 0xe17a1465;
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        long h = (seed & 0xffffffffl) ^ (length * m);
+
+        int length8 = length / 8;
+
+        for (int i = 0; i < length8; i++) {
+            final int i8 = i * 8;
+            long k = ((long) data[i8 + 0] & 0xff) + (((long) data[i8 + 1] & 0xff) << 8)
+                    + (((long) data[i8 + 2] & 0xff) << 16) + (((long) data[i8 + 3] & 0xff) << 24)
+                    + (((long) data[i8 + 4] & 0xff) << 32) + (((long) data[i8 + 5] & 0xff) << 40)
+                    + (((long) data[i8 + 6] & 0xff) << 48) + (((long) data[i8 + 7] & 0xff) << 56);
+
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+
+            h ^= k;
+            h *= m;
+        }
+
+        switch (length % 8) {
+        case 7:
+            h ^= (long) (data[(length & ~7) + 6] & 0xff) << 48;
+        case 6:
+            h ^= (long) (data[(length & ~7) + 5] & 0xff) << 40;
+        case 5:
+            h ^= (long) (data[(length & ~7) + 4] & 0xff) << 32;
+        case 4:
+            h ^= (long) (data[(length & ~7) + 3] & 0xff) << 24;
+        case 3:
+            h ^= (long) (data[(length & ~7) + 2] & 0xff) << 16;
+        case 2:
+            h ^= (long) (data[(length & ~7) + 1] & 0xff) << 8;
+        case 1:
+            h ^= (long) (data[length & ~7] & 0xff);
+            h *= m;
+        }
+        ;
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+}
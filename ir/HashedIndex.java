@@ -8,8 +8,10 @@
 
 package ir;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 
 
@@ -22,17 +24,56 @@ public class HashedIndex implements Index {
     /** The index as a hashtable. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** After cleanup(), the vocabulary, mapping each term to its index in <code>lists</code>. */
+    private TermAutomaton terms = null;
+
+    /** After cleanup(), the postings lists by term ID. */
+    private PostingsList[] lists = null;
+
+    /**
+     *  After cleanup(), the forward index: the term IDs and term frequencies
+     *  of document d are at <code>vectorStart[d] .. vectorStart[d + 1]</code>.
+     *  Built when it is first asked for.
+     */
+    private int[] vectorStart = null;
+    private int[] vectorTerms = null;
+    private int[] vectorTfs = null;
+
+    /** The documents of the index. */
+    private final DocTable docTable = new DocTable();
+
 
     /**
      *  Inserts this token in the hashtable.
      */
     public void insert( String token, int docID, int offset ) {
+        if (terms != null) thaw();
+
+        PostingsList pl = index.get(token);
+        if(pl == null){
+            pl = new PostingsList();
+            index.put(token, pl);
+        }
+        pl.add(docID, offset);
+    }
 
-        PostingsEntry newEntry = new PostingsEntry(docID, offset);
-        if(!index.containsKey(token)){
-            index.put(token, new PostingsList());
+
+    /**
+     *  Inserts the tokens of a document, with one lookup per distinct term.
+     */
+    public void insertDocument( int docID, DocumentTerms terms ) {
+        if (this.terms != null) thaw();
+
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.getTerm(i);
+            PostingsList pl = index.get(term);
+            terms.setNew(i, pl == null);
+            if (pl == null) {
+                pl = new PostingsList();
+                index.put(term, pl);
+            }
+            pl.addDocument(docID, terms.getPositions(i), terms.getTf(i));
         }
-        index.get(token).addEntry(newEntry);   
     }
 
 
@@ -44,13 +85,99 @@ public class HashedIndex implements Index {
         //
         // REPLACE THE STATEMENT BELOW WITH YOUR CODE
         //
+        if (terms != null) {
+            int id = terms.getID(token);
+            return id < 0 ? null : lists[id];
+        }
         if (!index.containsKey(token)) return null;
         else return index.get(token);
     }
 
     /**
-     *  No need for cleanup in a HashedIndex.
+     *  Returns the terms of the document, or null if the document has no
+     *  terms or the index has not been cleaned up.
+     */
+    public TermVector getTermVector( int docID ) {
+        if (terms == null) return null;
+        if (vectorStart == null) buildVectors();
+        if (docID < 0 || docID + 1 >= vectorStart.length) return null;
+        int from = vectorStart[docID];
+        int to = vectorStart[docID + 1];
+        if (from == to) return null;
+        return new TermVector(Arrays.copyOfRange(vectorTerms, from, to),
+                              Arrays.copyOfRange(vectorTfs, from, to), terms);
+    }
+
+    /**
+     *  Builds the forward index from the postings lists. The lists are
+     *  visited by term ID, so the terms of each document come out sorted.
+     */
+    private void buildVectors() {
+        int numDocIDs = 0;
+        int numEntries = 0;
+        for (PostingsList pl : lists) {
+            numDocIDs = Math.max(numDocIDs, pl.getDocID(pl.size() - 1) + 1);
+            numEntries += pl.size();
+        }
+        int[] start = new int[numDocIDs + 1];
+        for (PostingsList pl : lists) {
+            for (int i = 0; i < pl.size(); i++) start[pl.getDocID(i) + 1]++;
+        }
+        for (int d = 0; d < numDocIDs; d++) start[d + 1] += start[d];
+        int[] next = Arrays.copyOf(start, numDocIDs);
+        vectorTerms = new int[numEntries];
+        vectorTfs = new int[numEntries];
+        for (int id = 0; id < lists.length; id++) {
+            PostingsList pl = lists[id];
+            for (int i = 0; i < pl.size(); i++) {
+                int k = next[pl.getDocID(i)]++;
+                vectorTerms[k] = id;
+                vectorTfs[k] = pl.getTf(i);
+            }
+        }
+        vectorStart = start;
+    }
+
+    public DocTable getDocTable() {
+        return docTable;
+    }
+
+    public TermAutomaton getTermAutomaton() {
+        return terms;
+    }
+
+    /**
+     *  Replaces the hashtable by a TermAutomaton and an array of postings
+     *  lists indexed by term ID, so that the terms are no longer kept as
+     *  Strings.
      */
     public void cleanup() {
+        if (terms != null) return;
+        TermAutomaton.Builder builder = new TermAutomaton.Builder();
+        for (String token : index.keySet()) {
+            builder.add(token);
+        }
+        terms = builder.build();
+        lists = new PostingsList[terms.size()];
+        for (Map.Entry<String,PostingsList> entry : index.entrySet()) {
+            lists[terms.getID(entry.getKey())] = entry.getValue();
+        }
+        index = null;
+    }
+
+    /**
+     *  Turns the index back into a hashtable, when tokens are inserted
+     *  after cleanup().
+     */
+    private void thaw() {
+        index = new HashMap<String,PostingsList>();
+        for (int id = 0; id < lists.length; id++) {
+            index.put(terms.getTerm(id), lists[id]);
+        }
+        terms = null;
+        lists = null;
+        vectorStart = null;
+        vectorTerms = null;
+        vectorTfs = null;
     }
 }
@@ -7,10 +7,7 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.ListIterator;
+import java.util.List;
 
 /**
  * Defines some common data structures and methods that all types of index
@@ -18,40 +15,139 @@ import java.util.ListIterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer, String> docNames = new HashMap<Integer, String>();
+    /**
+     * Returns the table of the documents of this index, where the indexer records
+     * the documents it indexes.
+     */
+    public DocTable getDocTable();
 
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer, Integer> docLengths = new HashMap<Integer, Integer>();
+    /** Returns the name of the document, or null if there is no such document. */
+    public default String getDocName(int docID) {
+        return getDocTable().getName(docID);
+    }
+
+    /** Returns the length of the document in tokens, or 0 if there is no such document. */
+    public default int getDocLength(int docID) {
+        return Math.max(getDocTable().getLength(docID), 0);
+    }
+
+    /** Returns the stamp of the document's file, or null if there is none. */
+    public default DocStamp getDocStamp(int docID) {
+        return getDocTable().getStamp(docID);
+    }
+
+    /** Returns the number of documents in the index. */
+    public default int getNumDocs() {
+        return getDocTable().size();
+    }
+
+    /** All docIDs of the index are below this. */
+    public default int getDocIDLimit() {
+        return getDocTable().limit();
+    }
 
     /** Inserts a token into the index. */
     public void insert(String token, int docID, int offset);
 
+    /**
+     * Inserts all tokens of a document into the index, and marks the terms that
+     * were not in the index before as new.
+     */
+    public default void insertDocument(int docID, DocumentTerms terms) {
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.getTerm(i);
+            terms.setNew(i, getPostings(term) == null);
+            int[] positions = terms.getPositions(i);
+            for (int k = 0; k < terms.getTf(i); k++) {
+                insert(term, docID, positions[k]);
+            }
+        }
+    }
+
     /** Returns the postings for a given term. */
     public PostingsList getPostings(String token);
 
+    /** Returns the number of documents containing the term. */
+    public default int getDocumentFrequency(String token) {
+        PostingsList pl = getPostings(token);
+        return pl == null ? 0 : pl.size();
+    }
+
+    /**
+     * Returns the terms starting with the prefix, or null if the index does not
+     * keep its terms in sorted order.
+     */
+    public default List<String> getTermsWithPrefix(String prefix) {
+        return null;
+    }
+
+    /**
+     * Returns the vocabulary of the index, or null if the index has not built
+     * one (yet).
+     */
+    public default TermAutomaton getTermAutomaton() {
+        return null;
+    }
+
+    /**
+     * Returns the distinct terms of the document with their frequencies, or null
+     * if the index does not know them.
+     */
+    public default TermVector getTermVector(int docID) {
+        return null;
+    }
+
+    /**
+     * Called before documents are indexed. If <code>update</code> is true, the
+     * documents already in the index are kept, otherwise the index is emptied.
+     * Returns the first docID to be used for new documents.
+     */
+    public default int beginIndexing(boolean update) {
+        return 0;
+    }
+
+    /**
+     * Deletes a document, so that it is no longer returned by getPostings. Indexes
+     * that are always built from scratch never contain deleted documents.
+     */
+    public default void delete(int docID) {
+    }
+
+    /**
+     * Returns true if several threads may insert documents at the same time, and
+     * queries may run while documents are inserted.
+     */
+    public default boolean isConcurrent() {
+        return false;
+    }
+
+    /**
+     * Called before a query is evaluated. The reads of the query until endQuery
+     * all see the index as it was at this point, even if it is changed meanwhile.
+     */
+    public default void beginQuery() {
+    }
+
+    /** Called after a query has been evaluated. */
+    public default void endQuery() {
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
-    public HashMap<Integer, HashSet<String>> docTokens = new HashMap<Integer, HashSet<String>>();
-
-    public static void showDocInfo(PostingsList pl) {
-        ListIterator<PostingsEntry> it = pl.gIterator();
+    public default void showDocInfo(PostingsList pl) {
         System.out.println("*****************INFO*********************");
         int i = 0;
-        while (it.hasNext() && i < 50) {
+        while (i < pl.size() && i < 50) {
+            System.out.println(getDocName(pl.getDocID(i)));
             i++;
-            PostingsEntry e = it.next();
-            System.out.println(docNames.get(e.docID));
         }
         System.out.println("---------Relevance Feedback done!-------------");
         // 3229
-        i = 0;
-        while (it.hasNext()) {
-            PostingsEntry e = it.next();
+        while (i < pl.size()) {
             i++;
-            if (e.docID == 3229)
-                System.out.println(i);
+            if (pl.getDocID(i - 1) == 3229)
+                System.out.println(i - 50);
         }
     }
 }
@@ -10,6 +10,7 @@ package ir;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Processes a directory structure and indexes all PDF and text files.
@@ -28,6 +29,15 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /**
+     * Number of threads tokenizing files. 1 means indexing on the caller thread,
+     * more means indexing through an IngestPipeline.
+     */
+    int numThreads = 1;
+
+    /** The Strings of the tokens of the files indexed on the caller thread. */
+    private final Tokenizer.StringCache strings = new Tokenizer.StringCache();
+
     /* ----------------------------------------------- */
 
     /** Constructor */
@@ -37,6 +47,12 @@ public class Indexer {
         this.patterns_file = patterns_file;
     }
 
+    /** Constructor for indexing with several worker threads */
+    public Indexer(Index index, KGramIndex kgIndex, String patterns_file, int numThreads) {
+        this(index, kgIndex, patterns_file);
+        this.numThreads = Math.max(1, numThreads);
+    }
+
     /** Generates a new document identifier as an integer. */
     private int generateDocID() {
         return lastDocID++;
@@ -47,6 +63,10 @@ public class Indexer {
      * all its files and subdirectories are recursively processed.
      */
     public void processFiles(File f, boolean is_indexing) {
+        if (is_indexing && numThreads > 1) {
+            lastDocID = new IngestPipeline(this, lastDocID, numThreads).indexDirectory(f);
+            return;
+        }
         // do not try to index fs that cannot be read
         if (is_indexing) {
             if (f.canRead()) {
@@ -59,41 +79,147 @@ public class Indexer {
                         }
                     }
                 } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if (docID % 1000 == 0)
-                        System.err.println("Indexed " + docID + " files");
-                    try {
-                        Reader reader = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8);
-                        Tokenizer tok = new Tokenizer(reader, true, false, true, patterns_file);
-                        int offset = 0;
-                        // record the terms in the file
-                        Index.docTokens.put(docID, new HashSet<String>());
-                        while (tok.hasMoreTokens()) {
-                            String token = tok.nextToken();
-                            insertIntoIndex(docID, token, offset++);
-                            // put into the docTerms index
-                            Index.docTokens.get(docID).add(token);
-                        }
-                        index.docNames.put(docID, f.getPath());
-                        index.docLengths.put(docID, offset);
-                        reader.close();
-                    } catch (IOException e) {
-                        System.err.println("Warning: IOException during indexing.");
+                    indexFile(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tokenizes and indexes one file as a new document.
+     */
+    private void indexFile(File f) {
+        // First register the document and get a docID
+        int docID = generateDocID();
+        if (docID % 1000 == 0)
+            System.err.println("Indexed " + docID + " files");
+        try {
+            CheckedInputStream in = DocStamp.openChecked(f);
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            Tokenizer tok = new Tokenizer(reader, true, false, true, patterns_file);
+            DocumentTerms terms = new DocumentTerms();
+            tok.tokenize((buf, start, length) -> terms.add(strings.get(buf, start, length), terms.length()));
+            index.getDocTable().put(docID, f.getPath(), terms.length(), DocStamp.of(f, in.getChecksum().getValue()));
+            insertDocument(docID, terms);
+            reader.close();
+        } catch (IOException e) {
+            System.err.println("Warning: IOException during indexing.");
+        }
+    }
+
+    /**
+     * Indexes all files below the directories, replacing the documents that were
+     * in the index before.
+     */
+    public void indexAll(List<String> dirNames) {
+        lastDocID = index.beginIndexing(false);
+        for (String dirName : dirNames) {
+            processFiles(new File(dirName), true);
+        }
+    }
+
+    /**
+     * Brings the index up to date with the files below the directories. Files that
+     * have not changed since they were indexed (according to their modification
+     * time, size and checksum) are skipped; the documents of files that have
+     * changed or no longer exist are deleted, and new and changed files are
+     * indexed as new documents.
+     */
+    public void update(List<String> dirNames) {
+        lastDocID = index.beginIndexing(true);
+        HashMap<String, Integer> indexed = new HashMap<String, Integer>();
+        for (int docID = 0; docID < index.getDocIDLimit(); docID++) {
+            String name = index.getDocName(docID);
+            if (name != null)
+                indexed.put(name, docID);
+        }
+        ArrayList<File> files = new ArrayList<File>();
+        for (String dirName : dirNames) {
+            collectFiles(new File(dirName), files);
+        }
+        ArrayList<File> changed = new ArrayList<File>();
+        for (File f : files) {
+            Integer docID = indexed.remove(f.getPath());
+            if (docID != null) {
+                DocStamp stamp = index.getDocStamp(docID);
+                try {
+                    if (stamp != null && stamp.isUnchanged(f)) {
+                        // Remember the new modification time if only it changed
+                        index.getDocTable().setStamp(docID, DocStamp.of(f, stamp.checksum));
+                        continue;
                     }
+                } catch (IOException e) {
+                    System.err.println("Warning: could not read " + f + ": " + e);
                 }
+                deleteDocument(docID);
+            }
+            changed.add(f);
+        }
+        for (int docID : indexed.values()) {
+            deleteDocument(docID);
+        }
+        System.err.println(changed.size() + " new or changed files, " + indexed.size() + " removed files");
+        indexNewFiles(changed);
+    }
+
+    /**
+     * Indexes the files, in order, replacing the documents that were in the
+     * index before.
+     */
+    public void indexFiles(List<File> files) {
+        lastDocID = index.beginIndexing(false);
+        indexNewFiles(files);
+    }
+
+    /** Indexes the files, in order, as new documents. */
+    private void indexNewFiles(List<File> files) {
+        if (numThreads > 1) {
+            lastDocID = new IngestPipeline(this, lastDocID, numThreads).indexFiles(files);
+        } else {
+            for (File f : files) {
+                indexFile(f);
             }
         }
     }
 
+    private void deleteDocument(int docID) {
+        index.delete(docID);
+        index.getDocTable().remove(docID);
+    }
+
     /* ----------------------------------------------- */
 
     /**
-     * Indexes one token.
+     * Collects the files below <code>f</code> in the order in which
+     * <code>processFiles</code> would visit them.
+     */
+    void collectFiles(File f, List<File> files) {
+        if (f.canRead()) {
+            if (f.isDirectory()) {
+                String[] fs = f.list();
+                if (fs != null) {
+                    for (int i = 0; i < fs.length; i++) {
+                        collectFiles(new File(f, fs[i]), files);
+                    }
+                }
+            } else {
+                files.add(f);
+            }
+        }
+    }
+
+    /**
+     * Indexes the tokens of a document. The k-gram index, which may be searched
+     * and inserted into by several threads, is given the terms that are new to
+     * the index.
      */
-    public void insertIntoIndex(int docID, String token, int offset) {
-        index.insert(token, docID, offset);
-        if (kgIndex != null)
-            kgIndex.insert(token);
+    public void insertDocument(int docID, DocumentTerms terms) {
+        index.insertDocument(docID, terms);
+        if (kgIndex != null) {
+            for (int i = 0; i < terms.size(); i++) {
+                if (terms.isNew(i))
+                    kgIndex.insert(terms.getTerm(i));
+            }
+        }
     }
 }
@@ -0,0 +1,404 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Indexes files in four stages that run at the same time, so that reading
+ * files from disk, tokenizing them and inserting the tokens into the index
+ * overlap:
+ *
+ * <pre>
+ * walk -> read -> tokenize -> write
+ * </pre>
+ *
+ * The walker lists the files and gives them docIDs in the order the
+ * single-threaded indexer would. Reader threads read the files into memory,
+ * tokenizer threads group their tokens by term, and the writer, on the calling
+ * thread, inserts the documents into the index in docID order, a batch at a
+ * time. An index that is concurrent (see Index.isConcurrent) takes the
+ * documents straight from the tokenizer threads instead, in whatever order
+ * they come, and the writer only waits for the end. The stages are connected
+ * by bounded queues, so a stage that runs ahead blocks until the next one has
+ * caught up, and at most MAX_IN_FLIGHT documents are between the walker and
+ * the writer at any time.
+ *
+ * Every stage counts the documents and bytes it has handled, the time its
+ * threads were busy and the time they waited for the next stage, and the
+ * depth of its input queue. The counts are printed when indexing is done.
+ */
+public class IngestPipeline {
+
+    /** Number of threads reading files. */
+    public static final int READER_THREADS = 2;
+
+    /** Capacity of each queue between two stages, in documents. */
+    public static final int QUEUE_CAPACITY = 256;
+
+    /** Largest number of documents walked but not yet written to the index. */
+    public static final int MAX_IN_FLIGHT = 1024;
+
+    /** Largest number of documents the writer takes from its queue at a time. */
+    public static final int WRITE_BATCH = 64;
+
+    /** A document on its way through the pipeline. */
+    static class Doc {
+        final int docID;
+        final File file;
+        byte[] content;
+        DocStamp stamp;
+        DocumentTerms terms;
+        /** False if the file could not be read or tokenized. */
+        boolean ok = true;
+
+        Doc(int docID, File file) {
+            this.docID = docID;
+            this.file = file;
+        }
+    }
+
+    /** Marks the end of the documents in a queue. */
+    private static final Doc END = new Doc(-1, null);
+
+    /**
+     * The counters of one stage.
+     */
+    static class Stage {
+        final String name;
+        final int threads;
+        /** The queue the stage takes its documents from, or null. */
+        final BlockingQueue<Doc> input;
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong depthSum = new AtomicLong();
+        final AtomicLong depthSamples = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+
+        Stage(String name, int threads, BlockingQueue<Doc> input) {
+            this.name = name;
+            this.threads = threads;
+            this.input = input;
+        }
+
+        /** Takes the next document from the input queue. */
+        Doc take() throws InterruptedException {
+            int depth = input.size();
+            depthSum.addAndGet(depth);
+            depthSamples.incrementAndGet();
+            maxDepth.accumulateAndGet(depth, Math::max);
+            long start = System.nanoTime();
+            Doc doc = input.take();
+            waitNanos.addAndGet(System.nanoTime() - start);
+            return doc;
+        }
+
+        /** Puts a document into the queue of the next stage. */
+        void put(BlockingQueue<Doc> output, Doc doc) throws InterruptedException {
+            long start = System.nanoTime();
+            output.put(doc);
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        void done(long startNanos, long bytes) {
+            busyNanos.addAndGet(System.nanoTime() - startNanos);
+            items.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+        }
+
+        String report(long wallNanos) {
+            double seconds = wallNanos / 1e9;
+            double busy = 100.0 * busyNanos.get() / ((double) wallNanos * threads);
+            double wait = 100.0 * waitNanos.get() / ((double) wallNanos * threads);
+            String queue = input == null ? "-"
+                    : String.format("%.1f/%d", depthSamples.get() == 0 ? 0.0 : (double) depthSum.get() / depthSamples.get(),
+                            maxDepth.get());
+            return String.format("  %-9s %7d %9d %9.1f %9.0f %6.1f%% %6.1f%% %11s", name, threads, items.get(),
+                    bytes.get() / 1048576.0, items.get() / seconds, busy, wait, queue);
+        }
+    }
+
+    private final Indexer indexer;
+
+    private final int tokenizerThreads;
+
+    private final BlockingQueue<Doc> toRead = new ArrayBlockingQueue<Doc>(QUEUE_CAPACITY);
+
+    private final BlockingQueue<Doc> toTokenize = new ArrayBlockingQueue<Doc>(QUEUE_CAPACITY);
+
+    private final BlockingQueue<Doc> toWrite = new ArrayBlockingQueue<Doc>(QUEUE_CAPACITY);
+
+    private final Stage walk;
+
+    private final Stage read;
+
+    private final Stage tokenize;
+
+    private final Stage write;
+
+    /** Taken by the walker for each document, released by the writer. */
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    /** True if the tokenizer threads insert the documents themselves. */
+    private final boolean concurrent;
+
+    /** The docID of the first document. */
+    private final int firstDocID;
+
+    /** The docID of the next document the walker finds. */
+    private int nextDocID;
+
+    public IngestPipeline(Indexer indexer, int firstDocID, int tokenizerThreads) {
+        this.indexer = indexer;
+        this.firstDocID = firstDocID;
+        this.nextDocID = firstDocID;
+        this.tokenizerThreads = tokenizerThreads;
+        this.concurrent = indexer.index.isConcurrent();
+        walk = new Stage("walk", 1, null);
+        read = new Stage("read", READER_THREADS, toRead);
+        tokenize = new Stage("tokenize", tokenizerThreads, toTokenize);
+        write = new Stage("write", concurrent ? tokenizerThreads : 1, toWrite);
+    }
+
+    /**
+     * Indexes all files below <code>f</code>. Returns the docID after the last
+     * document.
+     */
+    public int indexDirectory(File f) {
+        return run(() -> walk(f));
+    }
+
+    /**
+     * Indexes the files, in order. Returns the docID after the last document.
+     */
+    public int indexFiles(List<File> files) {
+        return run(() -> {
+            for (File f : files) {
+                submit(f);
+            }
+        });
+    }
+
+    /** Lists the files, in the same order as Indexer.processFiles. */
+    private void walk(File f) throws InterruptedException {
+        if (f.canRead()) {
+            if (f.isDirectory()) {
+                String[] fs = f.list();
+                if (fs != null) {
+                    for (int i = 0; i < fs.length; i++) {
+                        walk(new File(f, fs[i]));
+                    }
+                }
+            } else {
+                submit(f);
+            }
+        }
+    }
+
+    /** Gives the file a docID and passes it on to the readers. */
+    private void submit(File f) throws InterruptedException {
+        long start = System.nanoTime();
+        inFlight.acquire();
+        walk.waitNanos.addAndGet(System.nanoTime() - start);
+        walk.put(toRead, new Doc(nextDocID++, f));
+        walk.items.incrementAndGet();
+    }
+
+    /** The body of the walker thread. */
+    private interface Walker {
+        void walk() throws InterruptedException;
+    }
+
+    private int run(Walker walker) {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(1 + READER_THREADS + tokenizerThreads);
+        AtomicInteger readers = new AtomicInteger(READER_THREADS);
+        AtomicInteger tokenizers = new AtomicInteger(tokenizerThreads);
+        pool.submit(() -> {
+            long walkStart = System.nanoTime();
+            try {
+                walker.walk();
+            } catch (InterruptedException e) {
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                walk.busyNanos.addAndGet(System.nanoTime() - walkStart - walk.waitNanos.get());
+                endOfInput(toRead, READER_THREADS);
+            }
+        });
+        for (int i = 0; i < READER_THREADS; i++) {
+            pool.submit(() -> {
+                try {
+                    readDocs();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (readers.decrementAndGet() == 0)
+                        endOfInput(toTokenize, tokenizerThreads);
+                }
+            });
+        }
+        for (int i = 0; i < tokenizerThreads; i++) {
+            pool.submit(() -> {
+                try {
+                    tokenizeDocs();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (tokenizers.decrementAndGet() == 0)
+                        endOfInput(toWrite, 1);
+                }
+            });
+        }
+        try {
+            writeDocs();
+        } catch (InterruptedException e) {
+            System.err.println("Warning: indexing was interrupted: " + e);
+        } finally {
+            pool.shutdownNow();
+        }
+        report(System.nanoTime() - start);
+        return nextDocID;
+    }
+
+    /** Puts one END into the queue for each thread taking from it. */
+    private void endOfInput(BlockingQueue<Doc> queue, int threads) {
+        try {
+            for (int i = 0; i < threads; i++) {
+                queue.put(END);
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** The read stage: reads each file into memory and computes its checksum. */
+    private void readDocs() {
+        try {
+            Doc doc;
+            while ((doc = read.take()) != END) {
+                long start = System.nanoTime();
+                try (CheckedInputStream in = DocStamp.openChecked(doc.file)) {
+                    doc.content = in.readAllBytes();
+                    doc.stamp = DocStamp.of(doc.file, in.getChecksum().getValue());
+                } catch (IOException e) {
+                    System.err.println("Warning: IOException during indexing.");
+                    doc.ok = false;
+                } catch (RuntimeException e) {
+                    // Pass the document on anyway, so that its docID is written
+                    e.printStackTrace();
+                    doc.ok = false;
+                }
+                read.done(start, doc.content == null ? 0 : doc.content.length);
+                read.put(toTokenize, doc);
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** The tokenize stage: turns the content of each file into tokens. */
+    private void tokenizeDocs() {
+        Tokenizer.StringCache strings = new Tokenizer.StringCache();
+        try {
+            Doc doc;
+            while ((doc = tokenize.take()) != END) {
+                long start = System.nanoTime();
+                if (doc.ok) {
+                    try {
+                        Reader reader = new InputStreamReader(new ByteArrayInputStream(doc.content),
+                                StandardCharsets.UTF_8);
+                        Tokenizer tok = new Tokenizer(reader, true, false, true, indexer.patterns_file);
+                        DocumentTerms terms = new DocumentTerms();
+                        tok.tokenize((buf, from, length) -> terms.add(strings.get(buf, from, length), terms.length()));
+                        doc.terms = terms;
+                    } catch (IOException e) {
+                        System.err.println("Warning: IOException during indexing.");
+                        doc.ok = false;
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        doc.ok = false;
+                    }
+                }
+                long bytes = doc.content == null ? 0 : doc.content.length;
+                doc.content = null;
+                tokenize.done(start, bytes);
+                if (concurrent) {
+                    try {
+                        writeDoc(doc);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    tokenize.put(toWrite, doc);
+                }
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * The write stage: inserts the documents into the index in docID order. The
+     * documents arrive out of order and wait until those before them are written.
+     */
+    private void writeDocs() throws InterruptedException {
+        TreeMap<Integer, Doc> waiting = new TreeMap<Integer, Doc>();
+        ArrayList<Doc> batch = new ArrayList<Doc>(WRITE_BATCH);
+        int next = firstDocID;
+        boolean end = false;
+        while (!end) {
+            batch.clear();
+            batch.add(write.take());
+            toWrite.drainTo(batch, WRITE_BATCH - 1);
+            for (Doc doc : batch) {
+                if (doc == END)
+                    end = true;
+                else
+                    waiting.put(doc.docID, doc);
+            }
+            // At the end, every document that will ever come has come
+            while (!waiting.isEmpty() && (waiting.firstKey() == next || end)) {
+                Doc doc = waiting.pollFirstEntry().getValue();
+                writeDoc(doc);
+                next = doc.docID + 1;
+            }
+        }
+    }
+
+    private void writeDoc(Doc doc) {
+        long start = System.nanoTime();
+        try {
+            if (doc.ok) {
+                indexer.index.getDocTable().put(doc.docID, doc.file.getPath(), doc.terms.length(), doc.stamp);
+                indexer.insertDocument(doc.docID, doc.terms);
+                doc.terms = null;
+            }
+        } finally {
+            write.done(start, 0);
+            inFlight.release();
+        }
+        long written = write.items.get();
+        if (written % 1000 == 0)
+            System.err.println("Indexed " + written + " files (queued: read " + toRead.size() + ", tokenize "
+                    + toTokenize.size() + ", write " + toWrite.size() + ")");
+    }
+
+    /** Prints the counters of all stages. */
+    private void report(long wallNanos) {
+        System.err.printf("Ingest pipeline: %d files in %.1f s%n", write.items.get(), wallNanos / 1e9);
+        System.err.printf("  %-9s %7s %9s %9s %9s %7s %7s %11s%n", "stage", "threads", "docs", "MB", "docs/s", "busy",
+                "wait", "queue avg/max");
+        for (Stage stage : new Stage[] { walk, read, tokenize, write }) {
+            System.err.println(stage.report(wallNanos));
+        }
+    }
+}
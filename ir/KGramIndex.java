@@ -14,15 +14,20 @@ import java.util.regex.*;
 import ir.Query.QueryTerm;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Maps the k-grams of the terms of an index to the terms that contain them.
+ *
+ * The index may be searched while terms are inserted (see
+ * Index.isConcurrent): the maps are guarded by a read-write lock, and the
+ * k-gram postings handed out are copies.
+ */
 public class KGramIndex {
 
     /** Mapping from term ids to actual term strings */
     HashMap<Integer, String> id2term = new HashMap<Integer, String>();
 
-    /** Mapping from term ids to the number of corresponding kgrams */
-    HashMap<Integer, Integer> id2kgnum = new HashMap<Integer, Integer>();
-
     /** Mapping from term strings to term ids */
     HashMap<String, Integer> term2id = new HashMap<String, Integer>();
 
@@ -33,9 +38,18 @@ public class KGramIndex {
     /** The ID of the last processed term */
     int lastTermID = -1;
 
+    /**
+     * The vocabulary of the index, once it has been built. The terms in it have
+     * their automaton IDs as term ids and are not kept in the maps above.
+     */
+    TermAutomaton terms = null;
+
     /** Number of symbols to form a K-gram */
     int K = 3;
 
+    /** Guards the maps, lastTermID and terms. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
     public KGramIndex(int k) {
         K = k;
         if (k <= 0) {
@@ -79,13 +93,22 @@ public class KGramIndex {
 
     /** Inserts all k-grams from a token into the index. */
     public void insert(String token) {
-        if (getIDByTerm(token) != null)
-            // if this token is already indexed
-            return;
-        int newid = generateTermID();
-        term2id.put(token, newid);
-        id2term.put(newid, token);
-        id2kgnum.put(newid, token.length() + 3 - getK());
+        lock.writeLock().lock();
+        try {
+            if (getIDByTerm(token) != null)
+                // if this token is already indexed
+                return;
+            int newid = generateTermID();
+            term2id.put(token, newid);
+            id2term.put(newid, token);
+            addKGrams(index, token, newid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Adds the term id to the postings of all k-grams of the token. */
+    private void addKGrams(HashMap<String, List<KGramPostingsEntry>> index, String token, int id) {
         // for a long word, the same kgram may appear several times
         Set<String> unique_kgs = new HashSet<String>();
         for (String kgram : getKGram(extend(token))) {
@@ -97,15 +120,45 @@ public class KGramIndex {
             if (!unique_kgs.contains(kgram)) {
                 unique_kgs.add(kgram);
                 List<KGramPostingsEntry> list = index.get(kgram);
-                list.add(new KGramPostingsEntry(newid));
+                list.add(new KGramPostingsEntry(id));
             }
         }
+    }
 
+    /**
+     * Switches to the term ids of the vocabulary of the index. The k-gram postings
+     * are rebuilt with the automaton IDs, and the terms are dropped from the maps,
+     * so that they are only stored once. Terms inserted later get ids after those
+     * of the automaton. The new postings are built before the lock is taken, so
+     * searches go on meanwhile.
+     */
+    public void setTermAutomaton(TermAutomaton automaton) {
+        HashMap<String, List<KGramPostingsEntry>> rebuilt = new HashMap<String, List<KGramPostingsEntry>>();
+        // Adding the terms in id order keeps the postings sorted
+        for (int id = 0; id < automaton.size(); id++) {
+            addKGrams(rebuilt, automaton.getTerm(id), id);
+        }
+        lock.writeLock().lock();
+        try {
+            terms = automaton;
+            term2id = new HashMap<String, Integer>();
+            id2term = new HashMap<Integer, String>();
+            index = rebuilt;
+            lastTermID = automaton.size() - 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    /** Get postings for the given k-gram */
+    /** Get a copy of the postings for the given k-gram, or null if there are none */
     public List<KGramPostingsEntry> getPostings(String kgram) {
-        return index.get(kgram);
+        lock.readLock().lock();
+        try {
+            List<KGramPostingsEntry> list = index.get(kgram);
+            return list == null ? null : new ArrayList<KGramPostingsEntry>(list);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public List<String> getTokensWithKG(String kgram) {
@@ -118,12 +171,34 @@ public class KGramIndex {
 
     /** Get id of a term */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        lock.readLock().lock();
+        try {
+            if (terms != null) {
+                int id = terms.getID(term);
+                if (id >= 0)
+                    return id;
+            }
+            return term2id.get(term);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        lock.readLock().lock();
+        try {
+            if (terms != null && id < terms.size())
+                return terms.getTerm(id);
+            return id2term.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Number of k-grams of the extended term with the given id */
+    public int getNumKGrams(int id) {
+        return getTermByID(id).length() + 3 - getK();
     }
 
     public ArrayList<String> getKGram(String _token) {
@@ -145,8 +220,9 @@ public class KGramIndex {
     public List<List<KGramPostingsEntry>> getAllKGList(String _token) {
         List<List<KGramPostingsEntry>> pl_all = new ArrayList<List<KGramPostingsEntry>>();
         for (String kgram : getKGram(extend(_token))) {
-            if (index.get(kgram) != null) {
-                pl_all.add(index.get(kgram));
+            List<KGramPostingsEntry> list = getPostings(kgram);
+            if (list != null) {
+                pl_all.add(list);
             }
         }
         return pl_all;
@@ -161,6 +237,15 @@ public class KGramIndex {
     }
 
     public ArrayList<String> parseToken(String _token) {
+        return parseToken(_token, null);
+    }
+
+    /**
+     * Expands a wildcard token into the matching terms. A trailing wildcard
+     * ("univ*") is looked up in the sorted terms of the index if it has them;
+     * other wildcards are matched through the k-grams.
+     */
+    public ArrayList<String> parseToken(String _token, Index termIndex) {
         ArrayList<String> parsed = new ArrayList<String>();
         // If it is not a wildcard
         if (_token.indexOf("*") == -1) {
@@ -168,6 +253,14 @@ public class KGramIndex {
             return parsed;
         }
 
+        if (termIndex != null && _token.indexOf("*") == _token.length() - 1) {
+            List<String> terms = termIndex.getTermsWithPrefix(_token.substring(0, _token.length() - 1));
+            if (terms != null) {
+                parsed.addAll(terms);
+                return parsed;
+            }
+        }
+
         String extended = extend(_token);
         Pattern p = Pattern.compile(extended.replace("*", ".*"));
 
@@ -187,9 +280,13 @@ public class KGramIndex {
     }
 
     public HashMap<Integer, ArrayList<String>> toLinkedQuery(Query original) {
+        return toLinkedQuery(original, null);
+    }
+
+    public HashMap<Integer, ArrayList<String>> toLinkedQuery(Query original, Index termIndex) {
         HashMap<Integer, ArrayList<String>> converted = new HashMap<Integer, ArrayList<String>>();
         for (int n = 0; n < original.size(); n++) {
-            converted.put(n, parseToken(original.getTermStringAt(n)));
+            converted.put(n, parseToken(original.getTermStringAt(n), termIndex));
         }
         return converted;
     }
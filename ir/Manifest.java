@@ -0,0 +1,239 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * The manifest of one commit of a PersistentHashedIndex: the segments of the
+ * index, the docInfo and tombstones files, and the length and CRC32C of every
+ * file they consist of.
+ *
+ * The manifest of generation N is stored in <code>segments_N</code>. A commit
+ * writes all new files under names that no earlier commit has used and syncs
+ * them to disk. It then writes the manifest to a temporary file, syncs it, and
+ * renames it to its final name in one atomic step. A crash at any point leaves
+ * the manifest of the previous commit, and the files it lists, as they were.
+ * On startup the newest complete manifest whose files all have the recorded
+ * lengths is loaded. The checksums of the files are only compared when asked
+ * for, since that reads the whole index; PersistentHashedIndex does so after a
+ * writer did not shut down cleanly.
+ *
+ * The manifest is a text file, one entry per line, ending with the CRC32C of
+ * all lines before it:
+ *
+ * <pre>
+ * IRMANIFEST 1
+ * generation 7
+ * nextDocID 1200
+ * nextSegment 9
+ * docInfo docInfo_7
+ * deletes deletes_7
+ * segment seg8
+ * file seg8/data 52311 2f0a91c3
+ * ...
+ * checksum 5d1e02b7
+ * </pre>
+ */
+public class Manifest {
+
+    /** Prefix of the manifest file names; the generation follows it. */
+    public static final String PREFIX = "segments_";
+
+    static final String HEADER = "IRMANIFEST 1";
+
+    public final long generation;
+
+    public final int nextDocID;
+
+    public final int nextSegmentNumber;
+
+    /** File name of the docInfo file, relative to the index directory. */
+    public final String docInfo;
+
+    /** File name of the tombstones file, relative to the index directory. */
+    public final String deletes;
+
+    /** Names of the segments, which are also the names of their directories. */
+    public final List<String> segments;
+
+    /** Length and CRC32C of every file of the commit, by relative path. */
+    public final Map<String, long[]> files;
+
+    public Manifest(long generation, int nextDocID, int nextSegmentNumber, String docInfo, String deletes,
+            List<String> segments, Map<String, long[]> files) {
+        this.generation = generation;
+        this.nextDocID = nextDocID;
+        this.nextSegmentNumber = nextSegmentNumber;
+        this.docInfo = docInfo;
+        this.deletes = deletes;
+        this.segments = segments;
+        this.files = files;
+    }
+
+    /**
+     * Writes the manifest to <code>segments_N</code> in the index directory,
+     * through a temporary file that is synced and then atomically renamed.
+     */
+    public void write(File dir) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HEADER).append('\n');
+        sb.append("generation ").append(generation).append('\n');
+        sb.append("nextDocID ").append(nextDocID).append('\n');
+        sb.append("nextSegment ").append(nextSegmentNumber).append('\n');
+        sb.append("docInfo ").append(docInfo).append('\n');
+        sb.append("deletes ").append(deletes).append('\n');
+        for (String segment : segments) {
+            sb.append("segment ").append(segment).append('\n');
+        }
+        for (Map.Entry<String, long[]> e : files.entrySet()) {
+            sb.append("file ").append(e.getKey()).append(' ').append(e.getValue()[0]).append(' ')
+                    .append(Long.toHexString(e.getValue()[1])).append('\n');
+        }
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        byte[] footer = ("checksum " + Long.toHexString(crc.getValue()) + "\n").getBytes(StandardCharsets.UTF_8);
+
+        File tmp = new File(dir, PREFIX + generation + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(body);
+            out.write(footer);
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, PREFIX + generation).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        fsync(dir);
+    }
+
+    /**
+     * Reads a manifest and checks it: the checksum of the manifest itself, the
+     * length of every file it lists and, if <code>verify</code> is true, the
+     * checksum of every file.
+     *
+     * @throws IOException if the manifest or one of its files is missing or damaged
+     */
+    public static Manifest read(File dir, File manifestFile, boolean verify) throws IOException {
+        byte[] bytes = Files.readAllBytes(manifestFile.toPath());
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        int footer = text.lastIndexOf("checksum ");
+        if (!text.startsWith(HEADER + "\n") || footer < 0 || !text.endsWith("\n"))
+            throw new IOException(manifestFile + " is incomplete");
+        CRC32C crc = new CRC32C();
+        crc.update(text.substring(0, footer).getBytes(StandardCharsets.UTF_8));
+        long expected = Long.parseLong(text.substring(footer + 9, text.length() - 1), 16);
+        if (crc.getValue() != expected)
+            throw new IOException(manifestFile + " has a bad checksum");
+
+        long generation = -1;
+        int nextDocID = 0;
+        int nextSegmentNumber = 0;
+        String docInfo = null;
+        String deletes = null;
+        ArrayList<String> segments = new ArrayList<String>();
+        LinkedHashMap<String, long[]> files = new LinkedHashMap<String, long[]>();
+        for (String line : text.substring(0, footer).split("\n")) {
+            String[] f = line.split(" ");
+            switch (f[0]) {
+            case "generation":
+                generation = Long.parseLong(f[1]);
+                break;
+            case "nextDocID":
+                nextDocID = Integer.parseInt(f[1]);
+                break;
+            case "nextSegment":
+                nextSegmentNumber = Integer.parseInt(f[1]);
+                break;
+            case "docInfo":
+                docInfo = f[1];
+                break;
+            case "deletes":
+                deletes = f[1];
+                break;
+            case "segment":
+                segments.add(f[1]);
+                break;
+            case "file":
+                files.put(f[1], new long[] { Long.parseLong(f[2]), Long.parseLong(f[3], 16) });
+                break;
+            }
+        }
+
+        for (Map.Entry<String, long[]> e : files.entrySet()) {
+            File file = new File(dir, e.getKey());
+            if (!file.isFile() || file.length() != e.getValue()[0])
+                throw new IOException(file + " is missing or has the wrong length");
+            if (verify && checksum(file) != e.getValue()[1])
+                throw new IOException(file + " has a bad checksum");
+        }
+        return new Manifest(generation, nextDocID, nextSegmentNumber, docInfo, deletes, segments, files);
+    }
+
+    /**
+     * Returns the newest manifest in the directory that is complete and whose
+     * files are all intact, or null if there is none. Damaged manifests are
+     * reported and skipped. See read for <code>verify</code>.
+     */
+    public static Manifest readLatest(File dir, boolean verify) {
+        for (long generation : generations(dir)) {
+            try {
+                return read(dir, new File(dir, PREFIX + generation), verify);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping commit " + generation + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /** Returns the generations of the manifests in the directory, newest first. */
+    static List<Long> generations(File dir) {
+        ArrayList<Long> generations = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && !name.endsWith(".tmp")) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        generations.sort(Collections.reverseOrder());
+        return generations;
+    }
+
+    /** Returns the CRC32C of the contents of the file. */
+    public static long checksum(File f) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Forces the file, or the entries of the directory, to be written to disk.
+     */
+    public static void fsync(File f) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open directories; their entries are synced
+            // with the files
+            if (!f.isDirectory())
+                throw e;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a file of arbitrary length.
+ *
+ * A single MappedByteBuffer can address at most 2 GB, so the file is mapped as
+ * a sequence of segments of <code>SEGMENT_SIZE</code> bytes. All reads use
+ * absolute positions and never touch the position of the buffers, which makes
+ * a MappedFile safe to share between threads.
+ */
+public class MappedFile {
+
+    /** log2 of the segment size. */
+    static final int SEGMENT_BITS = 30;
+
+    /** Each mapped segment covers this many bytes (1 GB). */
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /** The mapped segments of the file. */
+    private final MappedByteBuffer[] segments;
+
+    /** Number of bytes mapped. */
+    private final long length;
+
+    /**
+     * Maps the first <code>length</code> bytes of the file.
+     */
+    public MappedFile(File file, long length) throws IOException {
+        this.length = length;
+        int numSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        segments = new MappedByteBuffer[numSegments];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            for (int i = 0; i < numSegments; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                long size = Math.min(SEGMENT_SIZE, length - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+    }
+
+    /**
+     * Maps the whole file.
+     */
+    public MappedFile(File file) throws IOException {
+        this(file, file.length());
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte get(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+    }
+
+    public int getInt(long pos) {
+        int seg = (int) (pos >>> SEGMENT_BITS);
+        int off = (int) (pos & SEGMENT_MASK);
+        if (off + 4 <= segments[seg].limit())
+            return segments[seg].getInt(off);
+        // The value straddles two segments
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (get(pos + i) & 0xFF);
+        return value;
+    }
+
+    public long getLong(long pos) {
+        int seg = (int) (pos >>> SEGMENT_BITS);
+        int off = (int) (pos & SEGMENT_MASK);
+        if (off + 8 <= segments[seg].limit())
+            return segments[seg].getLong(off);
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reads one variable-byte integer at <code>pos[0]</code> and advances it.
+     */
+    public int readVByte(long[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = get(pos[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
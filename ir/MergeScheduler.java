@@ -0,0 +1,110 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merges the segments of a PersistentHashedIndex in a background thread, so
+ * that committing and searching do not wait for merges.
+ *
+ * The segments to merge are chosen by the index's tiered merge policy. Merges
+ * run one at a time, and the merged segments are written at no more than
+ * <code>MAX_MB_PER_SEC</code>, so that a large merge does not take all disk
+ * bandwidth from the queries.
+ */
+public class MergeScheduler {
+
+    /** Maximum rate at which merges write, in MB/s, or 0 for no limit. */
+    public static final double MAX_MB_PER_SEC = 20.0;
+
+    private final PersistentHashedIndex index;
+
+    /**
+     * The merge thread. It ends when it has been idle for a while, so that it does
+     * not keep the JVM running, but an unfinished merge does.
+     */
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 1L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), r -> new Thread(r, "segment-merger"));
+
+    /** True if merging has been requested but not started yet. */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    public MergeScheduler(PersistentHashedIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Asks for the segments to be merged, if the merge policy finds any. Returns
+     * at once; the merges run in the merge thread.
+     */
+    public void maybeMerge() {
+        if (pending.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                pending.set(false);
+                index.runMerges();
+            });
+        }
+    }
+
+    /** Waits until no merges are running or requested. */
+    public void waitForMerges() throws InterruptedException {
+        Future<?> done = executor.submit(() -> {
+        });
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Returns a rate limiter for one merge, or null if merges are not throttled. */
+    RateLimiter rateLimiter() {
+        return MAX_MB_PER_SEC > 0 ? new RateLimiter(MAX_MB_PER_SEC) : null;
+    }
+
+    /**
+     * Pauses the writing thread as needed to keep the rate at which bytes are
+     * written under a limit.
+     */
+    public static class RateLimiter {
+
+        /** Nanoseconds per byte at the maximum rate. */
+        private final double nanosPerByte;
+
+        /** The time at which the bytes written so far may be done. */
+        private long last = System.nanoTime();
+
+        public RateLimiter(double mbPerSec) {
+            nanosPerByte = 1e9 / (mbPerSec * 1024 * 1024);
+        }
+
+        /**
+         * Called after writing <code>bytes</code>; sleeps if they were written
+         * faster than the limit allows.
+         */
+        public void pause(long bytes) {
+            long now = System.nanoTime();
+            long target = last + (long) (bytes * nanosPerByte);
+            if (target <= now) {
+                // Time spent not writing is not saved up for a later burst
+                last = now;
+                return;
+            }
+            last = target;
+            long wait = target - now;
+            // Short waits are added up until they are worth sleeping for
+            if (wait < 1000000L)
+                return;
+            try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
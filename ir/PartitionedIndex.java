@@ -0,0 +1,161 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+
+/**
+ * An index whose documents are divided over several partitions, each with an
+ * index and a k-gram index of its own. Document d goes to partition
+ * <code>d % K</code>. The partitions are searched in parallel by a
+ * PartitionedSearcher, on the fork/join pool of the index.
+ *
+ * The names, lengths and stamps of all documents are kept in the table of
+ * this index; each partition's table also has the documents of the partition,
+ * so that a partition can rank its documents by itself.
+ */
+public class PartitionedIndex implements Index {
+
+    /** The index and k-gram index of one partition. */
+    static class Partition {
+        final Index index = new HashedIndex();
+        final KGramIndex kgIndex;
+
+        Partition(int k) {
+            kgIndex = new KGramIndex(k);
+        }
+    }
+
+    private final Partition[] partitions;
+
+    /** Runs the work on the partitions. */
+    private final ForkJoinPool pool;
+
+    /** The documents of the index. */
+    private final DocTable docTable = new DocTable();
+
+    /**
+     * Creates an index of <code>numPartitions</code> partitions, with k-gram
+     * indexes of k-grams of length <code>k</code>.
+     */
+    public PartitionedIndex(int numPartitions, int k) {
+        partitions = new Partition[Math.max(1, numPartitions)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(k);
+        }
+        pool = new ForkJoinPool(Math.min(partitions.length, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Number of partitions. */
+    public int size() {
+        return partitions.length;
+    }
+
+    Partition getPartition(int i) {
+        return partitions[i];
+    }
+
+    private Partition partitionOf(int docID) {
+        return partitions[docID % partitions.length];
+    }
+
+    /**
+     * Applies the function to the number of every partition in parallel, and
+     * returns the results in partition order.
+     */
+    <T> List<T> scatter(IntFunction<T> f) {
+        ArrayList<ForkJoinTask<T>> tasks = new ArrayList<ForkJoinTask<T>>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            int partition = i;
+            tasks.add(pool.submit(() -> f.apply(partition)));
+        }
+        ArrayList<T> results = new ArrayList<T>(partitions.length);
+        for (ForkJoinTask<T> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    public DocTable getDocTable() {
+        return docTable;
+    }
+
+    public void insert(String token, int docID, int offset) {
+        partitionOf(docID).index.insert(token, docID, offset);
+    }
+
+    /**
+     * Inserts the document into its partition. The document has to be in the
+     * table of this index already, from where it is copied to the table of the
+     * partition. The terms are marked as new if they are new to the partition.
+     */
+    public void insertDocument(int docID, DocumentTerms terms) {
+        Partition partition = partitionOf(docID);
+        partition.index.getDocTable().put(docID, docTable.getName(docID), terms.length(), docTable.getStamp(docID));
+        partition.index.insertDocument(docID, terms);
+        for (int i = 0; i < terms.size(); i++) {
+            if (terms.isNew(i))
+                partition.kgIndex.insert(terms.getTerm(i));
+        }
+    }
+
+    /**
+     * Returns the postings of the term from all partitions, merged into one
+     * list, or null if no partition has the term.
+     */
+    public PostingsList getPostings(String token) {
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        for (PostingsList pl : scatter(i -> partitions[i].index.getPostings(token))) {
+            if (pl != null && pl.size() > 0)
+                lists.add(pl);
+        }
+        return lists.isEmpty() ? null : PostingsList.union(lists);
+    }
+
+    public int getDocumentFrequency(String token) {
+        int df = 0;
+        for (Partition partition : partitions) {
+            df += partition.index.getDocumentFrequency(token);
+        }
+        return df;
+    }
+
+    /**
+     * Returns the terms starting with the prefix from all partitions, or null if
+     * a partition does not keep its terms in sorted order.
+     */
+    public List<String> getTermsWithPrefix(String prefix) {
+        TreeSet<String> terms = new TreeSet<String>();
+        for (Partition partition : partitions) {
+            List<String> found = partition.index.getTermsWithPrefix(prefix);
+            if (found == null)
+                return null;
+            terms.addAll(found);
+        }
+        return new ArrayList<String>(terms);
+    }
+
+    public TermVector getTermVector(int docID) {
+        return docID < 0 ? null : partitionOf(docID).index.getTermVector(docID);
+    }
+
+    /**
+     * Cleans up the partitions in parallel, and gives each k-gram index the
+     * vocabulary of its partition.
+     */
+    public void cleanup() {
+        scatter(i -> {
+            Partition p = partitions[i];
+            p.index.cleanup();
+            if (p.index.getTermAutomaton() != null)
+                p.kgIndex.setTermAutomaton(p.index.getTermAutomaton());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+
+/**
+ * Searches a PartitionedIndex by evaluating the query on every partition in
+ * parallel and merging the results.
+ *
+ * The results of intersection, phrase and proximity queries are the union of
+ * the results of the partitions, which have no documents in common. Ranked
+ * queries are evaluated in two rounds: first every partition expands the query
+ * and counts the documents of each term, then every partition ranks its
+ * documents with the idf of the whole collection, so that the scores are the
+ * same as in a single index, and the best documents of all partitions are
+ * merged. HITS ranking, which scores the matching documents together, is done
+ * on the merged postings lists instead.
+ */
+public class PartitionedSearcher extends Searcher {
+
+    private final PartitionedIndex partitioned;
+
+    /**
+     * Computes the idf of the terms of a query from the document frequencies of
+     * the whole collection, while the postings come from one partition.
+     */
+    static class PartitionTFIDF extends TFIDF {
+        final Map<String, Integer> df;
+        final int numDocs;
+
+        PartitionTFIDF(Index partition, Map<String, Integer> df, int numDocs) {
+            super(partition);
+            this.df = df;
+            this.numDocs = numDocs;
+        }
+
+        int numDocs() {
+            return numDocs;
+        }
+
+        int documentFrequency(String term, PostingsList pl) {
+            return df.getOrDefault(term, pl.size());
+        }
+    }
+
+    public PartitionedSearcher(PartitionedIndex index, KGramIndex kgIndex, PageRank pageRank,
+            HITSRanker hitsRanker, TFIDF tfidf) {
+        super(index, kgIndex, pageRank, hitsRanker, tfidf);
+        this.partitioned = index;
+    }
+
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
+        if (query.size() == 0)
+            return null;
+        if (queryType == QueryType.RANKED_QUERY) {
+            if (rankingType == RankingType.HITS)
+                return super.search(query, queryType, rankingType);
+            return searchRanked(query, rankingType);
+        }
+
+        List<PostingsList> results = partitioned.scatter(i -> {
+            PartitionedIndex.Partition p = partitioned.getPartition(i);
+            return new Searcher(p.index, p.kgIndex, pageRank, hitsRanker, tfidf).search(query, queryType, rankingType);
+        });
+        ArrayList<PostingsList> found = new ArrayList<PostingsList>();
+        for (PostingsList result : results) {
+            if (result != null)
+                found.add(result);
+        }
+        if (found.isEmpty())
+            return occursInAllTerms(query, queryType) ? new PostingsList() : null;
+        return PostingsList.union(found);
+    }
+
+    /**
+     * Returns true if every term of the query is in the index, in which case a
+     * phrase or proximity query without results returns an empty list rather
+     * than null, as on a single index.
+     */
+    private boolean occursInAllTerms(Query query, QueryType queryType) {
+        if (queryType == QueryType.INTERSECTION_QUERY)
+            return false;
+        if (queryType == QueryType.PROXIMITY_QUERY)
+            query = stripNearOperators(query, new ArrayList<Integer>());
+        HashMap<Integer, ArrayList<String>> converted = kgIndex.toLinkedQuery(query, index);
+        for (ArrayList<String> options : converted.values()) {
+            boolean occurs = false;
+            for (String opt : options) {
+                if (index.getDocumentFrequency(opt) > 0) {
+                    occurs = true;
+                    break;
+                }
+            }
+            if (!occurs)
+                return false;
+        }
+        return query.size() > 0;
+    }
+
+    /**
+     * Ranks the documents of every partition with the statistics of the whole
+     * collection, and merges the results by score.
+     */
+    private PostingsList searchRanked(Query query, RankingType rankingType) {
+        // First round: the expanded terms of every partition, and their
+        // document frequencies in the whole collection
+        List<HashMap<Integer, ArrayList<String>>> converted = partitioned.scatter(i -> {
+            PartitionedIndex.Partition p = partitioned.getPartition(i);
+            return p.kgIndex.toLinkedQuery(query, p.index);
+        });
+        List<HashMap<String, Integer>> counts = partitioned.scatter(i -> {
+            Index partition = partitioned.getPartition(i).index;
+            HashMap<String, Integer> df = new HashMap<String, Integer>();
+            for (HashMap<Integer, ArrayList<String>> terms : converted) {
+                for (ArrayList<String> options : terms.values()) {
+                    for (String opt : options) {
+                        if (!df.containsKey(opt))
+                            df.put(opt, partition.getDocumentFrequency(opt));
+                    }
+                }
+            }
+            return df;
+        });
+        HashMap<String, Integer> df = new HashMap<String, Integer>();
+        for (HashMap<String, Integer> count : counts) {
+            count.forEach((term, n) -> df.merge(term, n, Integer::sum));
+        }
+        int numDocs = partitioned.getNumDocs();
+
+        // Second round: rank the documents of every partition
+        List<PostingsList> results = partitioned.scatter(i -> {
+            PartitionedIndex.Partition p = partitioned.getPartition(i);
+            TFIDF partitionTfidf = new PartitionTFIDF(p.index, df, numDocs);
+            if (rankingType == RankingType.TF_IDF)
+                return partitionTfidf.rankTopK(converted.get(i), TOP_K);
+            return new Searcher(p.index, p.kgIndex, pageRank, hitsRanker, partitionTfidf).search(query,
+                    QueryType.RANKED_QUERY, rankingType);
+        });
+
+        return mergeByScore(results, rankingType == RankingType.TF_IDF ? TOP_K : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Merges ranked results into one list of the <code>k</code> best entries,
+     * sorted by decreasing score and, on equal scores, by docID. Null results
+     * are skipped.
+     */
+    static PostingsList mergeByScore(List<PostingsList> results, int k) {
+        ArrayList<PostingsEntry> entries = new ArrayList<PostingsEntry>();
+        for (PostingsList result : results) {
+            for (int i = 0; result != null && i < result.size(); i++) {
+                entries.add(result.get(i));
+            }
+        }
+        entries.sort((a, b) -> {
+            int cmp = Double.compare(b.score, a.score);
+            return cmp != 0 ? cmp : Integer.compare(a.docID, b.docID);
+        });
+        PostingsList merged = new PostingsList();
+        for (int i = 0; i < Math.min(k, entries.size()); i++) {
+            merged.addEntry(entries.get(i));
+        }
+        return merged;
+    }
+}
@@ -9,19 +9,38 @@ package ir;
 
 import java.io.*;
 import java.util.*;
-import java.nio.ByteBuffer;
-import java.nio.charset.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /*
- *   Implements an inverted index as a hashtable on disk.
- *   
- *   Both the words (the dictionary) and the data (the postings list) are
- *   stored in RandomAccessFiles that permit fast (almost constant-time)
- *   disk seeks. 
+ *   Implements an inverted index as a set of segments on disk.
+ *
+ *   Each segment is an immutable inverted index over some of the
+ *   documents (see Segment): a HashDictionary maps each word to its
+ *   place in the data file, where the word is stored followed by its
+ *   postings list. The segments file lists the segments of the index.
+ *   A query is answered from all segments, and the results are joined.
  *
  *   When words are read and indexed, they are first put in an ordinary,
- *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   main-memory HashMap. When all words are read, they are committed to
+ *   disk as a new segment. An update of the index thus only writes the
+ *   new and changed documents. Deleted documents (including the old
+ *   versions of changed documents) are recorded in a bitmap of
+ *   tombstones and are left out of the results, until the segments they
+ *   are in get merged.
+ *
+ *   Segments are merged in the background by a MergeScheduler. Queries
+ *   read from a Snapshot, the segments and tombstones of the last commit
+ *   or merge. A commit or merge publishes a new snapshot, and the files
+ *   of a segment are deleted once no snapshot uses it any more, that is,
+ *   after the last query that started before the segment was merged away.
+ *
+ *   Every commit or merge is recorded as a new generation of the index:
+ *   the new files get names no earlier generation has used, and a
+ *   Manifest listing all files of the generation with their checksums is
+ *   atomically renamed into place. On startup the newest intact
+ *   generation is loaded, so a crash never leaves a half-written index.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -37,384 +56,1003 @@ public class PersistentHashedIndex implements Index {
     /** The terms file name */
     public static final String TERMS_FNAME = "terms";
 
-    /** The doc info file name */
+    /** The term automaton file name */
+    public static final String AUTOMATON_FNAME = "fst";
+
+    /** The forward index file name */
+    public static final String FORWARD_FNAME = "forward";
+
+    /** The doc info file name; the generation is appended to it */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    public static long NUM_COLLISIONS_ONCE = 0;
-    public static long NUM_COLLISIONS_MUL = 0;
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 611953L;
+    /** The tombstones file name; the generation is appended to it */
+    public static final String DELETES_FNAME = "deletes";
 
-    public static final int ENTRYSIZE = 20;
-    /** The dictionary hash table is stored in this file. */
-    RandomAccessFile dictionaryFile;
+    /**
+     * The name of the file that exists while the index is being written. If it
+     * is there on startup, the last writer did not finish, and the checksums of
+     * all files are verified.
+     */
+    public static final String WRITING_FNAME = "writing";
 
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFile;
+    /** The segments of the index. Guarded by commitLock. */
+    ArrayList<Segment> segments = new ArrayList<Segment>();
 
-    /** Pointer to the first free memory cell in the data file. */
-    long free = 0L;
+    /** The deleted documents, as of the last commit. Guarded by commitLock. */
+    BitSet deleted = new BitSet();
 
-    /** The cache as a main-memory hash map. */
-    HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
+    /** Documents deleted since the last commit. */
+    BitSet pendingDeletes = new BitSet();
 
-    // ===================================================================
+    /** Held while the segments or tombstones are changed and written. */
+    final Object commitLock = new Object();
 
-    public long extraHash(String str) {
-        long hash = 5381;
-        int M = 33;
-        for (int i = 0; i < str.length(); i++) {
-            hash = hash * M + str.charAt(i);
-        }
-        return hash;
-    }
+    /** The segments and tombstones that new queries read from. */
+    volatile Snapshot current;
+
+    /** The snapshot pinned by the query running in each thread, if any. */
+    final ThreadLocal<Snapshot> pinned = new ThreadLocal<Snapshot>();
+
+    /** Runs the merges in the background. */
+    final MergeScheduler mergeScheduler = new MergeScheduler(this);
+
+    /** Number of commits and merges in progress. Guarded by commitLock. */
+    int writers = 0;
+
+    /** The docID of the next new document; docIDs are never reused. */
+    int nextDocID = 0;
+
+    /** The number in the name of the next new segment. */
+    int nextSegmentNumber = 0;
+
+    /** The generation of the last commit, 0 if there is none. */
+    long generation = 0;
+
+    /** The docInfo file of the last commit. */
+    String docInfoFile = null;
 
     /**
-     * A helper class representing one entry in the dictionary hashtable.
+     * The names, lengths and stamps of the documents of the last commit. Guarded
+     * by commitLock.
      */
-    public class Entry {
+    DocStore docs = new DocStore();
 
-        long ptr;
-        int increament;
-        long hash;
-
-        public Entry(long _ptr, int _inc, long _hash) {
-            ptr = _ptr;
-            increament = _inc;
-            hash = _hash;
-        }
+    /**
+     * The documents indexed since the last commit, and the renewed stamps of
+     * documents of the last commit.
+     */
+    final DocTable docTable = new DocTable();
 
-        public byte[] format() {
-            // formate the Entry to BtyeArr 8B+4B+8B
-            ByteBuffer buffer = ByteBuffer.allocate(ENTRYSIZE);
-            buffer.putLong(ptr);
-            buffer.putInt(increament);
-            buffer.putLong(hash);
-            return buffer.array();
-        }
+    /** Length and CRC32C of the files of the index, by path relative to INDEXDIR. */
+    final ConcurrentHashMap<String, long[]> fileChecksums = new ConcurrentHashMap<String, long[]>();
 
-    }
+    /**
+     * False if the next commit replaces all documents of the index, true if it
+     * adds to them.
+     */
+    boolean updating = false;
 
-    // ==================================================================
-    public long preHash(String str) {
-        long hash = murmur64(str.getBytes(), str.getBytes().length);
-        // long hash = mulHash64(str);
-        hash = hash > 0 ? hash : -hash;
-        hash = hash % TABLESIZE;
-        return hash;
-    }
+    /** The cache as a main-memory hash map. */
+    HashMap<String, PostingsList> index = new HashMap<String, PostingsList>();
 
-    public long mulHash64(String str) {
-        long hash = 5381;
-        int M = 33;
-        for (int i = 0; i < str.length(); i++) {
-            hash = hash * M + str.charAt(i);
-        }
-        return hash;
-    }
+    /**
+     * When the estimated size of the main-memory hash map exceeds this many bytes,
+     * it is flushed to disk as a sorted run.
+     */
+    public static final long MEMORY_BUDGET = 256L << 20;
 
-    // murmur hash code credit:
-    // https://github.com/tnm/murmurhash-java/blob/master/src/main/java/ie/ucd/murmur/MurmurHash.java
-    // this hash more than halfs the collision from 130K to 50K
-    public long murmur64(final byte[] data, int length) {
+    /** Estimated heap cost of a new term (String and map entry). */
+    static final int TERM_BYTES = 80;
 
-        final int seed = 0xe17a1465;
-        final long m = 0xc6a4a7935bd1e995L;
-        final int r = 47;
+    /** Estimated heap size of the main-memory hash map. */
+    long bufferedBytes = 0L;
 
-        long h = (seed & 0xffffffffl) ^ (length * m);
+    /** The docID of the last inserted token. */
+    int lastDocID = -1;
 
-        int length8 = length / 8;
+    /** Sorted runs flushed to disk so far, in the order they were written. */
+    ArrayList<File> runs = new ArrayList<File>();
 
-        for (int i = 0; i < length8; i++) {
-            final int i8 = i * 8;
-            long k = ((long) data[i8 + 0] & 0xff) + (((long) data[i8 + 1] & 0xff) << 8)
-                    + (((long) data[i8 + 2] & 0xff) << 16) + (((long) data[i8 + 3] & 0xff) << 24)
-                    + (((long) data[i8 + 4] & 0xff) << 32) + (((long) data[i8 + 5] & 0xff) << 40)
-                    + (((long) data[i8 + 6] & 0xff) << 48) + (((long) data[i8 + 7] & 0xff) << 56);
+    /** Number of distinct terms written to the segment of the last commit. */
+    int numTerms = 0;
 
-            k *= m;
-            k ^= k >>> r;
-            k *= m;
+    /** Heap budget in bytes for decoded postings lists kept by the cache. */
+    public static final long CACHE_BYTES = 64L << 20;
 
-            h ^= k;
-            h *= m;
-        }
 
-        switch (length % 8) {
-        case 7:
-            h ^= (long) (data[(length & ~7) + 6] & 0xff) << 48;
-        case 6:
-            h ^= (long) (data[(length & ~7) + 5] & 0xff) << 40;
-        case 5:
-            h ^= (long) (data[(length & ~7) + 4] & 0xff) << 32;
-        case 4:
-            h ^= (long) (data[(length & ~7) + 3] & 0xff) << 24;
-        case 3:
-            h ^= (long) (data[(length & ~7) + 2] & 0xff) << 16;
-        case 2:
-            h ^= (long) (data[(length & ~7) + 1] & 0xff) << 8;
-        case 1:
-            h ^= (long) (data[length & ~7] & 0xff);
-            h *= m;
-        }
-        ;
+    /** Number of segments of about the same size that are merged into one. */
+    public static final int MERGE_FACTOR = 10;
 
-        h ^= h >>> r;
-        h *= m;
-        h ^= h >>> r;
+    /** Segments smaller than this are all in the lowest tier of the merge policy. */
+    public static final long MIN_SEGMENT_BYTES = 1L << 20;
 
-        return h;
+    /**
+     * Constructor. Opens the newest intact generation of the index in INDEXDIR, if
+     * there is one, checking only the lengths of its files.
+     */
+    public PersistentHashedIndex() {
+        this(false);
     }
 
-    public long finalHash(String str) {
-        long pre = preHash(str);
-        long ptr = 0;
+    /**
+     * Constructor. Opens the newest intact generation of the index in INDEXDIR, if
+     * there is one. The checksums of its files are verified if
+     * <code>verifyChecksums</code> is true, or if the last writer of the index
+     * did not finish.
+     */
+    public PersistentHashedIndex(boolean verifyChecksums) {
         try {
-            ptr = pre * ENTRYSIZE;
-            dictionaryFile.seek(ptr + 8);
-            // if (dictionaryFile.readLong() != 0)
-            // NUM_COLLISIONS_ONCE++;
-            while (dictionaryFile.readInt() != 0) {
-                pre++;
-                ptr = pre * ENTRYSIZE;
-                dictionaryFile.seek(ptr + 8);
-                NUM_COLLISIONS_MUL++;
-                if (pre == TABLESIZE)
-                    pre = 0;
+            File writing = new File(INDEXDIR, WRITING_FNAME);
+            boolean unclean = writing.exists();
+            if (unclean)
+                System.err.println("The index in " + INDEXDIR + " was not closed cleanly; verifying its files");
+            Manifest manifest = Manifest.readLatest(new File(INDEXDIR), verifyChecksums || unclean);
+            if (manifest != null) {
+                load(manifest);
+                updating = true;
+                if (unclean)
+                    writing.delete();
+            } else if (new File(INDEXDIR, DATA_FNAME).exists() || new File(INDEXDIR, DOCINFO_FNAME).exists()) {
+                System.err.println("The index in " + INDEXDIR + " was written in an older format ("
+                        + formatOf(new File(INDEXDIR, DATA_FNAME)) + ") and has to be rebuilt (run without -ni)");
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return pre;
+        current = new Snapshot(segments, deleted, docs, new PostingsCache(CACHE_BYTES));
     }
 
     /**
-     * Constructor. Opens the dictionary file and the data file. If these files
-     * don't exist, they will be created.
+     * Describes the format of the data file of an index written before it had
+     * segments: the text format, or a version of the binary postings format
+     * whose dictionary cannot be read any more.
      */
-    public PersistentHashedIndex() {
-        try {
-            dictionaryFile = new RandomAccessFile(INDEXDIR + "/" + DICTIONARY_FNAME, "rw");
-            dictionaryFile.seek((TABLESIZE + 1) * ENTRYSIZE);// write an EOF tag
-            dictionaryFile.writeInt(999);
-
-            dataFile = new RandomAccessFile(INDEXDIR + "/" + DATA_FNAME, "rw");
+    private static String formatOf(File data) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(data))) {
+            if (in.readInt() != PostingsCodec.MAGIC)
+                return "text";
+            return "binary version " + in.readInt();
         } catch (IOException e) {
-            e.printStackTrace();
+            return "unknown";
         }
+    }
 
-        try {
-            readDocInfo();
-        } catch (FileNotFoundException e) {
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Opens the files of a generation, and deletes the files that do not belong
+     * to it: older generations, and files of a commit or merge that did not
+     * finish.
+     */
+    private void load(Manifest manifest) throws IOException {
+        generation = manifest.generation;
+        nextDocID = manifest.nextDocID;
+        nextSegmentNumber = manifest.nextSegmentNumber;
+        docInfoFile = manifest.docInfo;
+        docs = new DocStore(new File(INDEXDIR, manifest.docInfo));
+        readDeletes(new File(INDEXDIR, manifest.deletes));
+        for (String name : manifest.segments) {
+            segments.add(new Segment(new File(INDEXDIR, name)));
+        }
+        fileChecksums.putAll(manifest.files);
+
+        File[] files = new File(INDEXDIR).listFiles();
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isDirectory() && name.startsWith("seg") && !manifest.segments.contains(name)) {
+                Segment.deleteFiles(f);
+            } else if (name.startsWith("run")) {
+                f.delete();
+            }
         }
+        deleteOldGenerations(manifest);
     }
 
     /**
-     * Writes data to the data file at a specified place.
-     *
-     * @return The number of bytes written.
+     * Deletes the manifests, docInfo and tombstones files that are not part of
+     * the generation.
      */
-    int writeData(String dataString, long ptr) {
-        try {
-            dataFile.seek(ptr);
-            byte[] data = dataString.getBytes();
-            dataFile.write(data);
-            return data.length;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return -1;
+    private void deleteOldGenerations(Manifest manifest) {
+        String[] names = new File(INDEXDIR).list();
+        for (String name : names) {
+            boolean generational = name.startsWith(Manifest.PREFIX) || name.startsWith(DOCINFO_FNAME + "_")
+                    || name.startsWith(DELETES_FNAME + "_");
+            if (generational && !manifest.files.containsKey(name)
+                    && !name.equals(Manifest.PREFIX + manifest.generation)) {
+                new File(INDEXDIR, name).delete();
+            }
         }
     }
 
     /**
-     * Reads data from the data file
+     * Commits the segments, the tombstones and, if they have changed, the
+     * document names and lengths as a new generation of the index (see
+     * Manifest). Must hold commitLock.
      */
-    String readData(long ptr, int size) {
-        try {
-            dataFile.seek(ptr);
-            byte[] data = new byte[size];
-            dataFile.readFully(data);
-            return new String(data);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    private void commit(boolean docsChanged) throws IOException {
+        long gen = generation + 1;
+        if (docsChanged || docInfoFile == null) {
+            docInfoFile = DOCINFO_FNAME + "_" + gen;
+            writeDocInfo(new File(INDEXDIR, docInfoFile));
+            docs = new DocStore(new File(INDEXDIR, docInfoFile));
+            docTable.clear();
         }
+        String deletesFile = DELETES_FNAME + "_" + gen;
+        writeDeletes(new File(INDEXDIR, deletesFile));
+
+        LinkedHashMap<String, long[]> files = new LinkedHashMap<String, long[]>();
+        files.put(docInfoFile, describe(docInfoFile));
+        files.put(deletesFile, describe(deletesFile));
+        ArrayList<String> names = new ArrayList<String>();
+        for (Segment segment : segments) {
+            names.add(segment.name);
+            for (String name : Segment.FILE_NAMES) {
+                String path = segment.name + "/" + name;
+                files.put(path, describe(path));
+            }
+        }
+        Manifest manifest = new Manifest(gen, nextDocID, nextSegmentNumber, docInfoFile, deletesFile, names, files);
+        manifest.write(new File(INDEXDIR));
+        generation = gen;
+        fileChecksums.keySet().retainAll(files.keySet());
+        deleteOldGenerations(manifest);
     }
 
-    // ==================================================================
-    //
-    // Reading and writing to the dictionary file.
+    /**
+     * Returns the length and checksum of a file of the index. Files are never
+     * changed once written, so the checksum is only computed once.
+     */
+    private long[] describe(String path) throws IOException {
+        long[] description = fileChecksums.get(path);
+        if (description == null) {
+            File f = new File(INDEXDIR, path);
+            description = new long[] { f.length(), Manifest.checksum(f) };
+            fileChecksums.put(path, description);
+        }
+        return description;
+    }
 
-    /*
-     * Writes an entry to the dictionary hash table file.
-     *
-     * @param entry The key of this entry is assumed to have a fixed length
-     * 
-     * @param ptr The place in the dictionary file to store the entry
+    /**
+     * Computes the checksums of the files of a new segment, so that the commit
+     * that adds the segment does not have to.
      */
-    void writeEntry(Entry entry, long _finalHash) {
+    private void describe(Segment segment) throws IOException {
+        for (String name : Segment.FILE_NAMES) {
+            describe(segment.name + "/" + name);
+        }
+    }
 
-        long ptr = _finalHash * ENTRYSIZE;
-        try {
-            dictionaryFile.seek(ptr);
-            dictionaryFile.write(entry.format());
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Writes the document names, lengths and file stamps to file: those of the
+     * last commit that have not been deleted, if the index is being updated, and
+     * those of the documents indexed since.
+     */
+    private void writeDocInfo(File file) throws IOException {
+        try (DocStore.Writer writer = new DocStore.Writer(file, nextDocID)) {
+            for (int docID = 0; docID < nextDocID; docID++) {
+                String name = docTable.getName(docID);
+                if (name != null) {
+                    writer.add(docID, name, docTable.getLength(docID), docTable.getStamp(docID));
+                } else if (updating && docs.contains(docID) && !deleted.get(docID)) {
+                    // The stamp may have been renewed by the update
+                    DocStamp stamp = docTable.getStamp(docID);
+                    writer.add(docID, docs.getName(docID), docs.getLength(docID),
+                            stamp != null ? stamp : docs.getStamp(docID));
+                }
+            }
+        }
+    }
+
+    private void readDeletes(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = in.readLong();
+            deleted = BitSet.valueOf(words);
         }
+    }
 
+    private void writeDeletes(File file) throws IOException {
+        FileOutputStream fout = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout))) {
+            long[] words = deleted.toLongArray();
+            out.writeInt(words.length);
+            for (long word : words)
+                out.writeLong(word);
+            out.flush();
+            fout.getFD().sync();
+        }
     }
 
     /**
-     * Reads an entry from the dictionary file.
-     *
-     * @param _finalHash The place in the dictionary file where to start reading.
+     * Keeps the documents already in the index if <code>update</code> is true;
+     * otherwise they are replaced by the documents indexed from now on when the
+     * index is written.
      */
-    Entry readEntry(long _finalHash) {
+    public int beginIndexing(boolean update) {
+        updating = update;
+        if (!update) {
+            docTable.clear();
+            nextDocID = 0;
+        }
+        return nextDocID;
+    }
 
-        long dataptr = 0;
-        int dataInc = 0;
-        long hash = 0;
-        long ptr = _finalHash * ENTRYSIZE;
+    /**
+     * Write the index to files: the new documents become a new segment, which
+     * is visible to the queries that start after this. Then the merge scheduler
+     * is asked to merge segments according to the merge policy.
+     */
+    public void writeIndex() {
         try {
-            dictionaryFile.seek(ptr);
-            dataptr = dictionaryFile.readLong();
-            dictionaryFile.seek(ptr + 8);
-            dataInc = dictionaryFile.readInt();
-            dictionaryFile.seek(ptr + 12);
-            hash = dictionaryFile.readLong();
+            new File(INDEXDIR).mkdirs();
+            beginWrite();
 
+            // Write the new documents to a new segment
+            numTerms = 0;
+            Segment added = null;
+            if (!index.isEmpty() || !runs.isEmpty()) {
+                SegmentWriter writer = new SegmentWriter(newSegmentDir(), null);
+                if (runs.isEmpty()) {
+                    ArrayList<String> terms = new ArrayList<String>(index.keySet());
+                    Collections.sort(terms);
+                    for (String term : terms) {
+                        writer.add(term, PostingsCodec.encode(index.get(term), this));
+                    }
+                } else {
+                    flushRun();
+                    mergeRuns(writer);
+                }
+                writer.close();
+                numTerms = writer.numTerms();
+                index.clear();
+                bufferedBytes = 0L;
+                added = new Segment(writer.dir);
+                describe(added);
+            }
+
+            synchronized (commitLock) {
+                if (!updating) {
+                    segments.clear();
+                    deleted.clear();
+                    deleteUnsegmentedFiles();
+                }
+                if (added != null)
+                    segments.add(added);
+                deleted.or(pendingDeletes);
+                pendingDeletes.clear();
+                // Documents without any tokens were never inserted
+                nextDocID = Math.max(nextDocID, docTable.limit());
+                commit(true);
+                publish(new PostingsCache(CACHE_BYTES));
+                updating = true;
+            }
+            mergeScheduler.maybeMerge();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            endWrite();
+        }
+    }
+
+    /**
+     * Creates the WRITING_FNAME file, if no other commit or merge is in progress.
+     * Every call is followed by a call to endWrite, even if this one throws.
+     */
+    private void beginWrite() throws IOException {
+        synchronized (commitLock) {
+            if (writers++ == 0) {
+                new File(INDEXDIR, WRITING_FNAME).createNewFile();
+                Manifest.fsync(new File(INDEXDIR));
+            }
+        }
+    }
+
+    /** Deletes the WRITING_FNAME file after the last commit or merge in progress. */
+    private void endWrite() {
+        synchronized (commitLock) {
+            if (--writers == 0)
+                new File(INDEXDIR, WRITING_FNAME).delete();
+        }
+    }
+
+    /** Returns the directory of a new segment. */
+    File newSegmentDir() {
+        synchronized (commitLock) {
+            return new File(INDEXDIR, "seg" + nextSegmentNumber++);
+        }
+    }
+
+    /**
+     * Makes the current segments and tombstones visible to new queries. The
+     * previous snapshot is released, and the segments only it used are deleted
+     * when the queries still reading from it are done. Must hold commitLock.
+     */
+    private void publish(PostingsCache cache) {
+        Snapshot previous = current;
+        current = new Snapshot(segments, deleted, docs, cache);
+        previous.decRef();
+    }
+
+    /** Deletes the files of an index written before it had segments and manifests. */
+    private void deleteUnsegmentedFiles() {
+        for (String name : new String[] { DICTIONARY_FNAME, DATA_FNAME, TERMS_FNAME, AUTOMATON_FNAME, DOCINFO_FNAME,
+                DELETES_FNAME, "segments" }) {
+            new File(INDEXDIR, name).delete();
         }
-        // System.out.println("dataptr " + dataptr + " incre " + dataInc + " hash " +
-        // hash);
-        Entry result = new Entry(dataptr, dataInc, hash);
-        return result;
     }
 
     // ==================================================================
+    //
+    // Sort-based construction with bounded memory (SPIMI).
 
     /**
-     * Writes the document names and document lengths to file.
-     *
-     * @throws IOException { exception_description }
+     * Writes the main-memory hash map to a new run file, with the terms in sorted
+     * order and the postings in the binary format, and then empties the hash map.
      */
-    private void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream(INDEXDIR + "/docInfo");
-        for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
+    void flushRun() throws IOException {
+        File run = new File(INDEXDIR + "/run" + runs.size());
+        new File(INDEXDIR).mkdirs();
+        ArrayList<String> terms = new ArrayList<String>(index.keySet());
+        Collections.sort(terms);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+            out.writeInt(terms.size());
+            for (String term : terms) {
+                byte[] data = PostingsCodec.encode(index.get(term), this);
+                out.writeUTF(term);
+                out.writeInt(data.length);
+                out.write(data);
+            }
         }
-        fout.close();
+        runs.add(run);
+        index.clear();
+        bufferedBytes = 0L;
+        System.err.println("Flushed run " + run + " (" + terms.size() + " terms)");
     }
 
     /**
-     * Reads the document names and document lengths from file, and put them in the
-     * appropriate data structures.
-     *
-     * @throws IOException { exception_description }
+     * Reads the terms of a run file one at a time, in sorted order.
      */
-    private void readDocInfo() throws IOException {
-        File file = new File(INDEXDIR + "/docInfo");
-        FileReader freader = new FileReader(file);
-        try (BufferedReader br = new BufferedReader(freader)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] data = line.split(";");
-                docNames.put(new Integer(data[0]), data[1]);
-                docLengths.put(new Integer(data[0]), new Integer(data[2]));
+    static class RunReader {
+        final int runNo;
+        final DataInputStream in;
+        int remaining;
+        String term;
+        byte[] data;
+
+        RunReader(File run, int runNo) throws IOException {
+            this.runNo = runNo;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+            remaining = in.readInt();
+        }
+
+        /** Moves to the next term of the run, returns false at the end of the run. */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                in.close();
+                return false;
             }
+            remaining--;
+            term = in.readUTF();
+            data = new byte[in.readInt()];
+            in.readFully(data);
+            return true;
         }
-        freader.close();
     }
 
     /**
-     * Write the index to files.
+     * Merges all run files into a new segment. Runs are written in docID order, so
+     * the postings of a term in run i all come before its postings in run i+1, and
+     * concatenating them keeps the list sorted.
      */
-    public void writeIndex() {
-        // int collisions = 0;
-        try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
+    void mergeRuns(SegmentWriter writer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(), (a, b) -> {
+            int cmp = a.term.compareTo(b.term);
+            return cmp != 0 ? cmp : Integer.compare(a.runNo, b.runNo);
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader reader = new RunReader(runs.get(i), i);
+            if (reader.advance())
+                queue.add(reader);
+        }
+        ArrayList<RunReader> same = new ArrayList<RunReader>();
+        while (!queue.isEmpty()) {
+            same.clear();
+            same.add(queue.poll());
+            String term = same.get(0).term;
+            while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                same.add(queue.poll());
+            }
+            if (same.size() == 1) {
+                writer.add(term, same.get(0).data);
+            } else {
+                PostingsList merged = new PostingsList();
+                for (RunReader reader : same) {
+                    merged.concat(PostingsCodec.decode(reader.data, 0, reader.data.length));
+                }
+                writer.add(term, PostingsCodec.encode(merged, this));
+            }
+            for (RunReader reader : same) {
+                if (reader.advance())
+                    queue.add(reader);
+            }
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    // ==================================================================
+    //
+    // Merging segments.
+
+    /**
+     * Returns the tier of a segment in the merge policy: tier 0 holds the segments
+     * up to MIN_SEGMENT_BYTES, and every following tier holds segments up to
+     * MERGE_FACTOR times larger than the one before.
+     */
+    static int tier(long bytes) {
+        int tier = 0;
+        for (long limit = MIN_SEGMENT_BYTES; bytes > limit && tier < 32; limit *= MERGE_FACTOR) {
+            tier++;
+        }
+        return tier;
+    }
 
-            // Write the dictionary and the postings list
-            index.forEach((term, pl) -> {
+    /**
+     * Tiered merge policy: returns MERGE_FACTOR segments of the lowest tier that
+     * has that many, or null if no tier has. Merging them gives a segment of a
+     * higher tier, so every posting is rewritten about log(number of documents)
+     * times.
+     */
+    List<Segment> findMerge() {
+        TreeMap<Integer, ArrayList<Segment>> tiers = new TreeMap<Integer, ArrayList<Segment>>();
+        for (Segment segment : segments) {
+            tiers.computeIfAbsent(tier(segment.sizeInBytes()), t -> new ArrayList<Segment>()).add(segment);
+        }
+        for (ArrayList<Segment> tier : tiers.values()) {
+            if (tier.size() >= MERGE_FACTOR)
+                return tier.subList(0, MERGE_FACTOR);
+        }
+        return null;
+    }
 
-                int inc = writeData(pl.format(), free);
+    /**
+     * Merges segments as long as the merge policy finds segments to merge. Called
+     * by the merge scheduler, in its own thread. Queries and commits go on while
+     * a merge is running; only swapping in the merged segment holds commitLock.
+     */
+    void runMerges() {
+        while (true) {
+            ArrayList<Segment> sources;
+            BitSet deletes;
+            Snapshot snapshot;
+            synchronized (commitLock) {
+                List<Segment> merge = findMerge();
+                if (merge == null)
+                    return;
+                sources = new ArrayList<Segment>(merge);
+                deletes = (BitSet) deleted.clone();
+                // Keeps the sources from being deleted by a commit during the merge
+                snapshot = acquire();
+            }
+            try {
+                beginWrite();
+                BitSet dropped = new BitSet();
+                Segment merged = merge(sources, deletes, dropped);
+                if (merged != null)
+                    describe(merged);
+                synchronized (commitLock) {
+                    if (!segments.containsAll(sources)) {
+                        // The index was rebuilt during the merge
+                        if (merged != null)
+                            merged.deleteFiles();
+                        continue;
+                    }
+                    segments.removeAll(sources);
+                    if (merged != null)
+                        segments.add(merged);
+                    // The deleted documents of the sources are gone now
+                    deleted.andNot(dropped);
+                    commit(false);
+                    // Merging does not change the results, so the cache stays valid
+                    publish(current.cache);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                endWrite();
+                snapshot.decRef();
+            }
+        }
+    }
 
-                Entry newEntry = new Entry(free, inc, extraHash(term));
-                free += inc;
+    /** The next term of one of the segments being merged. */
+    static class TermCursor {
+        final Iterator<String> terms;
+        final Segment segment;
+        String term;
 
-                writeEntry(newEntry, finalHash(term));
-            });
+        TermCursor(Segment segment) {
+            this.segment = segment;
+            terms = segment.termIterator();
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        boolean advance() {
+            if (!terms.hasNext())
+                return false;
+            term = terms.next();
+            return true;
         }
-        System.err.println("One time collisions is " + NUM_COLLISIONS_ONCE + " .");
-        System.err.println("Multi-time collisions is " + NUM_COLLISIONS_MUL + " .");
+    }
+
+    /**
+     * Merges the segments into a new segment, leaving out the deleted documents.
+     * The deleted documents that were in the sources are added to
+     * <code>dropped</code>, as their tombstones are no longer needed. Returns null
+     * if all documents of the segments were deleted.
+     */
+    Segment merge(List<Segment> sources, BitSet deletes, BitSet dropped) throws IOException {
+        SegmentWriter writer = new SegmentWriter(newSegmentDir(), mergeScheduler.rateLimiter());
+        System.err.print("Merging " + sources.size() + " segments into " + writer.dir.getName() + "...");
+        PriorityQueue<TermCursor> queue = new PriorityQueue<TermCursor>(sources.size(),
+                (a, b) -> a.term.compareTo(b.term));
+        for (Segment segment : sources) {
+            TermCursor cursor = new TermCursor(segment);
+            if (cursor.advance())
+                queue.add(cursor);
+        }
+        BitSet mergedDocs = new BitSet();
+        ArrayList<TermCursor> same = new ArrayList<TermCursor>();
+        ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+        while (!queue.isEmpty()) {
+            same.clear();
+            same.add(queue.poll());
+            String term = same.get(0).term;
+            while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                same.add(queue.poll());
+            }
+            lists.clear();
+            for (TermCursor cursor : same) {
+                PostingsList pl = cursor.segment.readPostings(term);
+                for (int i = 0; i < pl.size(); i++)
+                    mergedDocs.set(pl.getDocID(i));
+                pl = pl.withoutDocs(deletes);
+                if (pl.size() > 0)
+                    lists.add(pl);
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+            if (!lists.isEmpty())
+                writer.add(term, PostingsCodec.encode(PostingsList.union(lists), this));
+        }
+        writer.close();
+        mergedDocs.and(deletes);
+        dropped.or(mergedDocs);
+        System.err.println("done!");
+        if (writer.numTerms() == 0) {
+            Segment.deleteFiles(writer.dir);
+            return null;
+        }
+        return new Segment(writer.dir);
     }
 
     // ==================================================================
 
     /**
-     * Returns the postings for a specific term, or null if the term is not in the
-     * index.
+     * The segments and tombstones of one commit or merge. A snapshot is never
+     * changed; queries holding a reference can go on reading from it after a
+     * newer snapshot has been published.
      */
-    public PostingsList getPostings(String token) {
+    static class Snapshot {
+        final List<Segment> segments;
+        final BitSet deleted;
+        final DocStore docs;
+
+        /** Recently read postings lists, shared with the following snapshots as long as the results stay the same. */
+        final PostingsCache cache;
+
+        /** The vocabulary of all segments, built when it is first asked for. */
+        private TermAutomaton vocabulary = null;
+
+        /** The index and the queries reading from the snapshot. */
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Snapshot(List<Segment> segments, BitSet deleted, DocStore docs, PostingsCache cache) {
+            this.segments = new ArrayList<Segment>(segments);
+            this.deleted = (BitSet) deleted.clone();
+            this.docs = docs;
+            this.cache = cache;
+            for (Segment segment : this.segments) {
+                segment.incRef();
+            }
+        }
+
+        /** Takes a reference, unless the snapshot has already been released. */
+        boolean tryIncRef() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0)
+                    return false;
+                if (refs.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
 
-        PostingsList result = new PostingsList();
-        long pre = preHash(token);
-        long extra = extraHash(token);
-        int offset = 0;
-        Entry dictEntry = readEntry(pre);
-        if (dictEntry.increament == 0)
+        /** Releases a reference; the last one releases the segments. */
+        void decRef() {
+            if (refs.decrementAndGet() == 0) {
+                for (Segment segment : segments) {
+                    segment.decRef();
+                }
+            }
+        }
+
+        PostingsList getPostings(String token) {
+            PostingsList result = cache.get(token);
+            if (result == null) {
+                result = readPostings(token);
+                cache.put(token, result);
+            }
             return result;
+        }
 
-        while (dictEntry.hash != extra) {
-            if (offset > 100) {
-                System.out.println("have not found a match after trying 100 new entries");
+        /**
+         * Reads the postings of a term from all segments and joins them, leaving out
+         * deleted documents.
+         */
+        PostingsList readPostings(String token) {
+            ArrayList<PostingsList> lists = new ArrayList<PostingsList>();
+            for (Segment segment : segments) {
+                PostingsList pl = segment.readPostings(token);
+                if (pl.size() > 0)
+                    lists.add(pl);
+            }
+            if (lists.isEmpty())
                 return new PostingsList();
+            return PostingsList.union(lists).withoutDocs(deleted);
+        }
+
+        int getDocumentFrequency(String token) {
+            int df = 0;
+            for (Segment segment : segments) {
+                df += segment.getDocumentFrequency(token);
             }
-            offset++;
-            dictEntry = readEntry(pre + offset);
-        }
-        String dataStr = readData(dictEntry.ptr, dictEntry.increament);
-        // System.out.print("ooo:" + dataStr);
-        String[] dataStrArr = dataStr.split("\n");
-        for (String s : dataStrArr) {
-            if (s.length() > 0) {
-                String[] arr = s.split(":");
-                PostingsEntry newPE = new PostingsEntry(Integer.parseInt(arr[0]), Integer.parseInt(arr[1]));
-                result.addEntry(newPE);
+            return df;
+        }
+
+        List<String> getTermsWithPrefix(String prefix) {
+            if (segments.isEmpty())
+                return null;
+            if (segments.size() == 1)
+                return segments.get(0).getTermsWithPrefix(prefix);
+            TreeSet<String> terms = new TreeSet<String>();
+            for (Segment segment : segments) {
+                terms.addAll(segment.getTermsWithPrefix(prefix));
             }
+            return new ArrayList<String>(terms);
         }
 
-        return result;
+        TermVector getTermVector(int docID) {
+            if (deleted.get(docID))
+                return null;
+            for (Segment segment : segments) {
+                TermVector vector = segment.getTermVector(docID);
+                if (vector != null)
+                    return vector;
+            }
+            return null;
+        }
+
+        synchronized TermAutomaton getTermAutomaton() {
+            if (segments.isEmpty())
+                return null;
+            if (segments.size() == 1)
+                return segments.get(0).getTermAutomaton();
+            if (vocabulary == null) {
+                HashSet<String> terms = new HashSet<String>();
+                for (Segment segment : segments) {
+                    for (Iterator<String> it = segment.termIterator(); it.hasNext();) {
+                        terms.add(it.next());
+                    }
+                }
+                TermAutomaton.Builder builder = new TermAutomaton.Builder();
+                for (String term : terms) {
+                    builder.add(term);
+                }
+                vocabulary = builder.build();
+            }
+            return vocabulary;
+        }
+    }
+
+    /** Returns the current snapshot, with a reference taken for the caller. */
+    Snapshot acquire() {
+        while (true) {
+            Snapshot snapshot = current;
+            if (snapshot.tryIncRef())
+                return snapshot;
+        }
+    }
+
+    /**
+     * Pins the current snapshot for the query about to run in this thread, so
+     * that all its reads see the same segments.
+     */
+    public void beginQuery() {
+        if (pinned.get() == null)
+            pinned.set(acquire());
+    }
+
+    public void endQuery() {
+        Snapshot snapshot = pinned.get();
+        if (snapshot != null) {
+            pinned.remove();
+            snapshot.decRef();
+        }
+    }
+
+    /**
+     * Reads from the snapshot pinned by the running query, or else from the
+     * current snapshot.
+     */
+    private <T> T read(Function<Snapshot, T> reader) {
+        Snapshot snapshot = pinned.get();
+        if (snapshot != null)
+            return reader.apply(snapshot);
+        snapshot = acquire();
+        try {
+            return reader.apply(snapshot);
+        } finally {
+            snapshot.decRef();
+        }
+    }
+
+    /**
+     * Returns the postings for a specific term, or an empty list if the term is
+     * not in the index. The returned list may be shared through the cache and
+     * must not be modified.
+     */
+    public PostingsList getPostings(String token) {
+        return read(snapshot -> snapshot.getPostings(token));
+    }
+
+    /**
+     * Returns the number of documents containing the term, as stored in the
+     * dictionaries, without reading the postings lists. Deleted documents are
+     * counted until their segments are merged.
+     */
+    public int getDocumentFrequency(String token) {
+        return read(snapshot -> snapshot.getDocumentFrequency(token));
+    }
+
+    /**
+     * Returns the terms starting with the prefix from the sorted terms files.
+     */
+    public List<String> getTermsWithPrefix(String prefix) {
+        return read(snapshot -> snapshot.getTermsWithPrefix(prefix));
+    }
+
+    /**
+     * Returns the vocabulary of all segments. With several segments, their
+     * vocabularies are joined into a new automaton.
+     */
+    public TermAutomaton getTermAutomaton() {
+        return read(snapshot -> snapshot.getTermAutomaton());
+    }
+
+    /**
+     * Returns the terms of the document from the forward index of the segment it
+     * is in, or null if it has not been committed yet.
+     */
+    public TermVector getTermVector(int docID) {
+        return read(snapshot -> snapshot.getTermVector(docID));
+    }
+
+    public DocTable getDocTable() {
+        return docTable;
+    }
+
+    /**
+     * Returns the name of the document, from the document store of the snapshot
+     * that is read, or from the document table if it has not been committed yet.
+     */
+    public String getDocName(int docID) {
+        String name = read(snapshot -> snapshot.docs.getName(docID));
+        return name != null ? name : docTable.getName(docID);
+    }
+
+    public int getDocLength(int docID) {
+        int length = read(snapshot -> snapshot.docs.getLength(docID));
+        return length >= 0 ? length : Math.max(docTable.getLength(docID), 0);
+    }
+
+    public DocStamp getDocStamp(int docID) {
+        DocStamp stamp = docTable.getStamp(docID);
+        return stamp != null ? stamp : read(snapshot -> snapshot.docs.getStamp(docID));
+    }
+
+    /** Returns the number of documents that queries can find. */
+    public int getNumDocs() {
+        return read(snapshot -> snapshot.docs.numDocs());
+    }
+
+    public int getDocIDLimit() {
+        return nextDocID;
     }
 
     /**
      * Inserts this token in the main-memory hashtable.
      */
     public void insert(String token, int docID, int offset) {
-        PostingsEntry newEntry = new PostingsEntry(docID, offset);
-        if (!index.containsKey(token)) {
-            index.put(token, new PostingsList());
+        // Runs are only flushed between documents, so that the lengths of all
+        // documents in a run are known when its weight bounds are computed
+        if (bufferedBytes > MEMORY_BUDGET && docID != lastDocID) {
+            try {
+                flushRun();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        index.get(token).addEntry(newEntry);
+        lastDocID = docID;
+        nextDocID = Math.max(nextDocID, docID + 1);
+        PostingsList pl = index.get(token);
+        if (pl == null) {
+            pl = new PostingsList();
+            index.put(token, pl);
+            bufferedBytes += TERM_BYTES + 2 * token.length() + pl.memoryBytes();
+        }
+        long before = pl.memoryBytes();
+        pl.add(docID, offset);
+        bufferedBytes += pl.memoryBytes() - before;
+    }
+
+    /**
+     * Inserts the tokens of a document into the main-memory hashtable, with one
+     * lookup per distinct term. Terms are new if they are not in the hashtable,
+     * which only holds the terms since the last run was flushed.
+     */
+    public void insertDocument(int docID, DocumentTerms terms) {
+        if (bufferedBytes > MEMORY_BUDGET) {
+            try {
+                flushRun();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        lastDocID = docID;
+        nextDocID = Math.max(nextDocID, docID + 1);
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.getTerm(i);
+            PostingsList pl = index.get(term);
+            terms.setNew(i, pl == null);
+            if (pl == null) {
+                pl = new PostingsList();
+                index.put(term, pl);
+                bufferedBytes += TERM_BYTES + 2 * term.length() + pl.memoryBytes();
+            }
+            long before = pl.memoryBytes();
+            pl.addDocument(docID, terms.getPositions(i), terms.getTf(i));
+            bufferedBytes += pl.memoryBytes() - before;
+        }
+    }
+
+    /**
+     * Marks the document as deleted. The tombstone is written, and the document
+     * disappears from the results, when the index is written.
+     */
+    public void delete(int docID) {
+        pendingDeletes.set(docID);
     }
 
     /**
      * Write index to file after indexing is done.
      */
     public void cleanup() {
-        System.err.println(index.keySet().size() + " unique words");
         System.err.print("Writing index to disk...");
         writeIndex();
         System.err.println("done!");
+        System.err.println(numTerms + " unique words in the new segment, " + segments.size() + " segments");
     }
 }
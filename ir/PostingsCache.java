@@ -0,0 +1,173 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decoded postings lists, bounded by the estimated number of heap
+ * bytes of the cached lists rather than by the number of entries.
+ *
+ * The cache is split into segments by the hash of the term. Each segment is an
+ * access-ordered LinkedHashMap with its own lock, so lookups of different terms
+ * rarely wait for each other. The byte budget is shared by all segments: when
+ * the total is over it, the least recently used lists are evicted from the
+ * segments in turn. A single list may take up to MAX_ENTRY_SHARE of the budget,
+ * so that the lists of frequent terms, which are the most expensive to decode,
+ * are cached too.
+ *
+ * Cached lists are shared between callers and must not be modified.
+ */
+public class PostingsCache {
+
+    /** Number of independently locked segments. */
+    static final int NUM_SEGMENTS = 16;
+
+    /** Estimated heap cost of a cache entry besides the postings list. */
+    static final int ENTRY_OVERHEAD = 64;
+
+    /** Largest fraction of the byte budget taken by one list. */
+    static final double MAX_ENTRY_SHARE = 0.5;
+
+    private final Segment[] segments = new Segment[NUM_SEGMENTS];
+
+    private final long maxBytes;
+
+    /** Estimated bytes of all segments. */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** The segment the next eviction is tried in. */
+    private final AtomicInteger evictionClock = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * One segment of the cache: an LRU map of some of the terms.
+     */
+    private class Segment {
+        long bytes = 0L;
+        final LinkedHashMap<String, PostingsList> map = new LinkedHashMap<String, PostingsList>(16, 0.75f, true);
+
+        synchronized PostingsList get(String term) {
+            return map.get(term);
+        }
+
+        synchronized void put(String term, PostingsList pl) {
+            long size = sizeOf(term, pl);
+            PostingsList old = map.put(term, pl);
+            if (old != null)
+                size -= sizeOf(term, old);
+            bytes += size;
+            PostingsCache.this.bytes.addAndGet(size);
+        }
+
+        /**
+         * Evicts the least recently used list, unless it is the list of
+         * <code>keep</code>. Returns false if nothing was evicted.
+         */
+        synchronized boolean evictEldest(String keep) {
+            Iterator<Map.Entry<String, PostingsList>> it = map.entrySet().iterator();
+            if (!it.hasNext())
+                return false;
+            Map.Entry<String, PostingsList> eldest = it.next();
+            if (eldest.getKey().equals(keep))
+                return false;
+            long size = sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+            bytes -= size;
+            PostingsCache.this.bytes.addAndGet(-size);
+            evictions.incrementAndGet();
+            return true;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            PostingsCache.this.bytes.addAndGet(-bytes);
+            bytes = 0L;
+        }
+    }
+
+    /**
+     * Creates a cache holding postings lists of at most <code>maxBytes</code>
+     * estimated heap bytes in total.
+     */
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private static long sizeOf(String term, PostingsList pl) {
+        return ENTRY_OVERHEAD + 2L * term.length() + pl.memoryBytes();
+    }
+
+    private Segment segmentFor(String term) {
+        int h = term.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7FFFFFFF) % NUM_SEGMENTS];
+    }
+
+    /**
+     * Returns the cached postings list of the term, or null on a miss.
+     */
+    public PostingsList get(String term) {
+        PostingsList pl = segmentFor(term).get(term);
+        if (pl != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return pl;
+    }
+
+    public void put(String term, PostingsList pl) {
+        if (sizeOf(term, pl) > maxBytes * MAX_ENTRY_SHARE)
+            return; // would evict too much else
+        segmentFor(term).put(term, pl);
+        // Evict from the segments in turn, until the cache is within its
+        // budget or no segment has anything left to evict
+        int failures = 0;
+        while (bytes.get() > maxBytes && failures < NUM_SEGMENTS) {
+            Segment s = segments[Math.floorMod(evictionClock.getAndIncrement(), NUM_SEGMENTS)];
+            failures = s.evictEldest(term) ? 0 : failures + 1;
+        }
+    }
+
+    /** Removes all lists, e.g. when the index on disk has been rewritten. */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Estimated number of heap bytes currently cached. */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public String toString() {
+        long lookups = getHits() + getMisses();
+        return String.format("postings cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d KB cached",
+                getHits(), getMisses(), lookups == 0 ? 0.0 : 100.0 * getHits() / lookups, getEvictions(),
+                getBytes() / 1024);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes and decodes postings lists in the binary format used by the data
+ * file of the PersistentHashedIndex.
+ *
+ * A postings list is stored as an upper bound of the term's tf-idf weight (a
+ * 4-byte float, see TFIDF.maxTermWeight) and the number of documents, followed
+ * by one record per document: the gap to the previous docID, the number of
+ * occurrences of the term in the document, and the gaps between consecutive
+ * offsets. All numbers except the bound are written as variable-byte integers
+ * (7 bits per byte, the high bit is set on every byte except the last one).
+ *
+ * In the data file each postings record directly follows the UTF-8 bytes of its
+ * term, which the HashDictionary uses to verify lookups.
+ */
+public class PostingsCodec {
+
+    /** Written at the start of the data file to tell it apart from the text format. */
+    public static final int MAGIC = 0x49525042; // "IRPB"
+
+    /**
+     * Version of the binary postings format. Version 1 had no weight bounds, and
+     * version 2 kept the dictionary in a fixed table whose entries changed from
+     * 20 to 24 bytes without a change of version, so a version 2 index cannot be
+     * read safely. Version 3 is the segmented index with a HashDictionary; older
+     * versions are rejected and have to be rebuilt.
+     */
+    public static final int VERSION = 3;
+
+    /** Size of the data file header (magic + version). */
+    public static final int HEADER_SIZE = 8;
+
+    public static void writeVByte(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Encodes the postings list. The entries are assumed to be sorted by docID,
+     * which is the order in which the indexer inserts them. If the weight bound of
+     * the list is not known, it is computed with the document lengths of the index.
+     */
+    public static byte[] encode(PostingsList pl, Index index) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pl.size() * 3 + 8);
+        // Round up, so that the stored value is still an upper bound
+        int bound = Float.floatToIntBits(Math.nextUp((float) TFIDF.maxTermWeight(pl, index)));
+        out.write(bound >>> 24);
+        out.write(bound >>> 16);
+        out.write(bound >>> 8);
+        out.write(bound);
+        writeVByte(out, pl.size());
+        int lastDocID = 0;
+        for (int i = 0; i < pl.size(); i++) {
+            int docID = pl.getDocID(i);
+            writeVByte(out, docID - lastDocID);
+            writeVByte(out, pl.getTf(i));
+            int lastOffset = 0;
+            for (int k = 0; k < pl.getTf(i); k++) {
+                int offset = pl.getPosition(i, k);
+                writeVByte(out, offset - lastOffset);
+                lastOffset = offset;
+            }
+            lastDocID = docID;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the number of documents of an encoded postings list.
+     */
+    public static int documentFrequency(byte[] data) {
+        return readVByte(data, new int[] { 4 });
+    }
+
+    /**
+     * Decodes <code>len</code> bytes starting at <code>off</code> into a postings
+     * list.
+     */
+    public static PostingsList decode(byte[] data, int off, int len) {
+        PostingsList result = new PostingsList();
+        int bound = ((data[off] & 0xFF) << 24) | ((data[off + 1] & 0xFF) << 16) | ((data[off + 2] & 0xFF) << 8)
+                | (data[off + 3] & 0xFF);
+        int[] pos = { off + 4 };
+        int numDocs = readVByte(data, pos);
+        int docID = 0;
+        for (int d = 0; d < numDocs; d++) {
+            docID += readVByte(data, pos);
+            int tf = readVByte(data, pos);
+            int offset = 0;
+            for (int k = 0; k < tf; k++) {
+                offset += readVByte(data, pos);
+                result.add(docID, offset);
+            }
+        }
+        result.maxTermWeight = Float.intBitsToFloat(bound);
+        if (pos[0] != off + len) {
+            System.err.println("Warning: postings record has " + (off + len - pos[0]) + " trailing bytes");
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a postings record directly from a memory-mapped data file.
+     */
+    public static PostingsList decode(MappedFile data, long off, int len) {
+        PostingsList result = new PostingsList();
+        int bound = data.getInt(off);
+        long[] pos = { off + 4 };
+        int numDocs = data.readVByte(pos);
+        int docID = 0;
+        for (int d = 0; d < numDocs; d++) {
+            docID += data.readVByte(pos);
+            int tf = data.readVByte(pos);
+            int offset = 0;
+            for (int k = 0; k < tf; k++) {
+                offset += data.readVByte(pos);
+                result.add(docID, offset);
+            }
+        }
+        result.maxTermWeight = Float.intBitsToFloat(bound);
+        return result;
+    }
+
+    /**
+     * Reads one variable-byte integer at <code>pos[0]</code> and advances it.
+     */
+    static int readVByte(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
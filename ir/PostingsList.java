@@ -1,7 +1,7 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   Johan Boye, 2017
  */
 
@@ -9,124 +9,522 @@ package ir;
 
 import java.util.*;
 
+/**
+ * A postings list with one entry per document. Each entry holds the docID, the
+ * number of occurrences of the term in the document (tf), the positions of those
+ * occurrences and, for search results, a score.
+ *
+ * The entries are stored column-wise in growable primitive arrays instead of
+ * one PostingsEntry object per occurrence. The positions of all documents are
+ * packed into one array; the positions of entry i are
+ * <code>positions[posStart[i] .. posStart[i] + tfs[i])</code>.
+ */
 public class PostingsList {
 
-    /** The postings list */
-    private ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
+    /** Number of entries (documents) in this list. */
+    private int size = 0;
+
+    private int[] docIDs = new int[2];
+
+    private int[] tfs = new int[2];
+
+    private int[] posStart = new int[2];
+
+    private int[] positions = new int[2];
+
+    /** Number of used cells in <code>positions</code>. */
+    private int numPositions = 0;
+
+    /** The scores of the entries, only allocated once a score is set. */
+    private double[] scores = null;
+
+    /**
+     * Upper bound of the tf-idf weight of this term in any document, without the
+     * idf factor (see TFIDF.maxTermWeight), or NaN if it is not known yet.
+     */
+    double maxTermWeight = Double.NaN;
+
+    /**
+     * True if views of this list (see view) may still read its arrays, which are
+     * then copied before an existing entry is changed. Appending entries does
+     * not change what a view sees.
+     */
+    private boolean viewed = false;
+
+    /** True if this list is a view, whose arrays belong to another list. */
+    private boolean borrowed = false;
 
     /** Number of postings in this list. */
     public int size() {
-        return list.size();
+        return size;
     }
 
     public PostingsList() {
     }
 
-    public ArrayList<PostingsEntry> getlist() {
-        return list;
+    public int getDocID(int i) {
+        return docIDs[i];
+    }
+
+    /** Returns the number of occurrences of the term in the ith document. */
+    public int getTf(int i) {
+        return tfs[i];
+    }
+
+    /** Returns the kth position of the term in the ith document. */
+    public int getPosition(int i, int k) {
+        return positions[posStart[i] + k];
+    }
+
+    public double getScore(int i) {
+        return scores == null ? 0.0 : scores[i];
+    }
+
+    public void setScore(int i, double score) {
+        if ((viewed || borrowed) && scores != null)
+            unshare();
+        if (scores == null) {
+            if (score == 0.0)
+                return;
+            scores = new double[docIDs.length];
+        }
+        scores[i] = score;
+    }
+
+    /** Estimated number of heap bytes used by this list. */
+    public long memoryBytes() {
+        long bytes = 64 + 3 * (16 + 4L * docIDs.length) + 16 + 4L * positions.length;
+        if (scores != null)
+            bytes += 16 + 8L * scores.length;
+        return bytes;
+    }
+
+    /**
+     * Returns a list of the current entries of this list that shares its arrays,
+     * in constant time. The view does not change when this list does; it is
+     * copied first if it is changed itself. The caller must keep this list from
+     * being changed while the view is taken.
+     */
+    PostingsList view() {
+        PostingsList view = new PostingsList();
+        view.size = size;
+        view.docIDs = docIDs;
+        view.tfs = tfs;
+        view.posStart = posStart;
+        view.positions = positions;
+        view.numPositions = numPositions;
+        view.scores = scores;
+        view.maxTermWeight = maxTermWeight;
+        view.borrowed = true;
+        viewed = true;
+        return view;
+    }
+
+    /** Gives this list arrays of its own, before an entry is changed in place. */
+    private void unshare() {
+        docIDs = docIDs.clone();
+        tfs = tfs.clone();
+        posStart = posStart.clone();
+        positions = positions.clone();
+        if (scores != null)
+            scores = scores.clone();
+        viewed = false;
+        borrowed = false;
+    }
+
+    private void growDocs() {
+        int capacity = docIDs.length * 2;
+        docIDs = Arrays.copyOf(docIDs, capacity);
+        tfs = Arrays.copyOf(tfs, capacity);
+        posStart = Arrays.copyOf(posStart, capacity);
+        if (scores != null)
+            scores = Arrays.copyOf(scores, capacity);
+    }
+
+    /**
+     * Adds an occurrence of the term at <code>offset</code> in document
+     * <code>docID</code>. Occurrences must be added in docID and offset order;
+     * consecutive occurrences in the same document share one entry.
+     */
+    public void add(int docID, int offset) {
+        if (borrowed || (viewed && size > 0 && docIDs[size - 1] == docID))
+            unshare();
+        if (size == 0 || docIDs[size - 1] != docID) {
+            if (size == docIDs.length)
+                growDocs();
+            docIDs[size] = docID;
+            tfs[size] = 0;
+            posStart[size] = numPositions;
+            size++;
+        }
+        if (numPositions == positions.length)
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        positions[numPositions++] = offset;
+        tfs[size - 1]++;
+        maxTermWeight = Double.NaN;
+    }
+
+    /**
+     * Adds all occurrences of the term in document <code>docID</code> at once:
+     * the first <code>tf</code> offsets of the array, in increasing order.
+     * Documents are cheapest to add in docID order; a document with a smaller
+     * docID than the last one is inserted at its place.
+     */
+    public void addDocument(int docID, int[] offsets, int tf) {
+        if (size > 0 && docIDs[size - 1] == docID) {
+            for (int k = 0; k < tf; k++)
+                add(docID, offsets[k]);
+            return;
+        }
+        if (size > 0 && docIDs[size - 1] > docID) {
+            insertDocument(docID, offsets, tf);
+            return;
+        }
+        if (borrowed)
+            unshare();
+        if (size == docIDs.length)
+            growDocs();
+        if (numPositions + tf > positions.length)
+            positions = Arrays.copyOf(positions, Math.max(positions.length * 2, numPositions + tf));
+        docIDs[size] = docID;
+        tfs[size] = tf;
+        posStart[size] = numPositions;
+        size++;
+        System.arraycopy(offsets, 0, positions, numPositions, tf);
+        numPositions += tf;
+        maxTermWeight = Double.NaN;
+    }
+
+    /**
+     * Adds a document with a smaller docID than the last one, moving the entries
+     * after it. If the list already has the document, the offsets are added
+     * after its positions.
+     */
+    private void insertDocument(int docID, int[] offsets, int tf) {
+        if (viewed || borrowed)
+            unshare();
+        int i = indexOfDoc(docID);
+        boolean found = i >= 0;
+        if (!found) {
+            i = -i - 1;
+            if (size == docIDs.length)
+                growDocs();
+        }
+        if (numPositions + tf > positions.length)
+            positions = Arrays.copyOf(positions, Math.max(positions.length * 2, numPositions + tf));
+        int p = found ? posStart[i] + tfs[i] : posStart[i];
+        System.arraycopy(positions, p, positions, p + tf, numPositions - p);
+        System.arraycopy(offsets, 0, positions, p, tf);
+        numPositions += tf;
+        if (found) {
+            tfs[i] += tf;
+        } else {
+            System.arraycopy(docIDs, i, docIDs, i + 1, size - i);
+            System.arraycopy(tfs, i, tfs, i + 1, size - i);
+            System.arraycopy(posStart, i, posStart, i + 1, size - i);
+            if (scores != null) {
+                System.arraycopy(scores, i, scores, i + 1, size - i);
+                scores[i] = 0.0;
+            }
+            docIDs[i] = docID;
+            tfs[i] = tf;
+            posStart[i] = p;
+            size++;
+        }
+        for (int j = i + 1; j < size; j++)
+            posStart[j] += tf;
+        maxTermWeight = Double.NaN;
+    }
+
+    /** Returns the ith posting. */
+    public PostingsEntry get(int i) {
+        PostingsEntry entry = new PostingsEntry(docIDs[i], positions[posStart[i]]);
+        entry.score = getScore(i);
+        return entry;
+    }
+
+    public void addEntry(PostingsEntry entry) {
+        add(entry.docID, entry.offset);
+        setScore(size - 1, entry.score);
     }
 
+    /**
+     * Appends the entries of the other list. If the first document of the other
+     * list is the last document of this list, their positions are joined.
+     */
     public void concat(PostingsList other) {
-        ArrayList<PostingsEntry> otherList = other.getlist();
-        list.addAll(otherList);
+        for (int i = 0; i < other.size(); i++) {
+            for (int k = 0; k < other.tfs[i]; k++) {
+                add(other.docIDs[i], other.getPosition(i, k));
+            }
+            setScore(size - 1, other.getScore(i));
+        }
+    }
+
+    /** Returns the entry indices of this list sorted with the given comparator. */
+    private Integer[] sortedOrder(Comparator<Integer> cmp) {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, cmp);
+        return order;
+    }
+
+    /** Rebuilds this list with its entries in the given order. */
+    private void reorder(Integer[] order) {
+        PostingsList sorted = new PostingsList();
+        for (int i : order) {
+            for (int k = 0; k < tfs[i]; k++) {
+                sorted.add(docIDs[i], getPosition(i, k));
+            }
+            sorted.setScore(sorted.size - 1, getScore(i));
+        }
+        size = sorted.size;
+        docIDs = sorted.docIDs;
+        tfs = sorted.tfs;
+        posStart = sorted.posStart;
+        positions = sorted.positions;
+        numPositions = sorted.numPositions;
+        scores = sorted.scores;
+        viewed = false;
+        borrowed = false;
     }
 
     public void sortByScore() {
-        Collections.sort(list, PostingsEntry.byScore);
+        reorder(sortedOrder((a, b) -> Double.compare(getScore(b), getScore(a))));
     }
 
+    /**
+     * Sorts the entries by docID. Entries with the same docID, e.g. after
+     * concatenating the lists of several terms, are joined into one entry with
+     * the positions in increasing order.
+     */
     public void sortByDocIdAndOffset() {
-        Collections.sort(list, PostingsEntry.byDocIdAndOffset);
+        reorder(sortedOrder((a, b) -> Integer.compare(docIDs[a], docIDs[b])));
+        for (int i = 0; i < size; i++) {
+            Arrays.sort(positions, posStart[i], posStart[i] + tfs[i]);
+        }
+    }
+
+    /**
+     * Returns the index of the entry for <code>_docID</code>, or a negative
+     * number if there is none. The list must be sorted by docID.
+     */
+    public int indexOfDoc(int _docID) {
+        return Arrays.binarySearch(docIDs, 0, size, _docID);
     }
 
     public int numTermOccursIn(int _docID) {
-        int result = 0;
-        ListIterator<PostingsEntry> it = gIterator();
-        while (it.hasNext()) {
-            if (it.next().docID == _docID)
-                result++;
-        }
-        return result;
+        int i = indexOfDoc(_docID);
+        return i < 0 ? 0 : tfs[i];
     }
 
     public Set<Integer> getDocIdSet() {
         Set<Integer> resultSet = new HashSet<Integer>();
-        ListIterator<PostingsEntry> it = gIterator();
-        while (it.hasNext()) {
-            resultSet.add(it.next().docID);
+        for (int i = 0; i < size; i++) {
+            resultSet.add(docIDs[i]);
         }
         return resultSet;
     }
 
-    /** Returns the ith posting. */
-    public PostingsEntry get(int i) {
-        return list.get(i);
+    /**
+     * Returns the entries whose docIDs are not in <code>docs</code>. Returns this
+     * list itself if there are none to remove.
+     */
+    public PostingsList withoutDocs(BitSet docs) {
+        int i = 0;
+        while (i < size && !docs.get(docIDs[i]))
+            i++;
+        if (i == size)
+            return this;
+        PostingsList result = new PostingsList();
+        for (i = 0; i < size; i++) {
+            if (!docs.get(docIDs[i]))
+                copyEntryTo(i, result);
+        }
+        // Still an upper bound for the remaining entries
+        result.maxTermWeight = maxTermWeight;
+        return result;
     }
 
-    public void addEntry(PostingsEntry entry) {
-        list.add(entry);
+    /** Copies the ith entry of this list, with its positions, to the end of result. */
+    private void copyEntryTo(int i, PostingsList result) {
+        for (int k = 0; k < tfs[i]; k++) {
+            result.add(docIDs[i], getPosition(i, k));
+        }
     }
 
-    public ListIterator<PostingsEntry> gIterator() {
-        return list.listIterator();
+    /**
+     * Galloping (exponential) search: returns the first index in
+     * <code>[from, size)</code> whose docID is at least <code>target</code>, or
+     * <code>size</code> if there is none. Probes from+1, from+2, from+4, from+8, ...
+     * and then binary searches the last interval, so skipping over n entries
+     * costs O(log n).
+     */
+    int advanceTo(int from, int target) {
+        if (from >= size || docIDs[from] >= target)
+            return from;
+        int lo = from;
+        int step = 1;
+        int hi = from + step;
+        while (hi < size && docIDs[hi] < target) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        if (hi > size)
+            hi = size;
+        // docIDs[lo] < target, and docIDs[hi] >= target or hi == size
+        int found = Arrays.binarySearch(docIDs, lo + 1, hi, target);
+        return found >= 0 ? found : -found - 1;
     }
 
+    /**
+     * Returns the documents in both lists, with the positions of this list, or
+     * null if there are none. Both lists must be sorted by docID. The shorter
+     * list drives the merge and the longer one is skipped through with galloping
+     * search, so intersecting a rare term with a common one costs time
+     * proportional to the rare list (times the log of the gap between matches).
+     */
     public PostingsList intersectWith(PostingsList other) {
-        Set<Integer> resultSet = new HashSet<Integer>();
         PostingsList result = new PostingsList();
-        int i = 0;
+        PostingsList small = size() <= other.size() ? this : other;
+        PostingsList large = small == this ? other : this;
         int j = 0;
-        while (i < size() && j < other.size()) {
-            PostingsEntry e_self = get(i);
-            PostingsEntry e_other = other.get(j);
-            if (e_self.docID == e_other.docID && !resultSet.contains(e_self.docID)) {
-                result.addEntry(e_self);
-                resultSet.add(e_self.docID);
-                i++;
-                j++;
-            } else if (e_self.docID < e_other.docID)
-                i++;
-            else
+        for (int i = 0; i < small.size() && j < large.size(); i++) {
+            j = large.advanceTo(j, small.docIDs[i]);
+            if (j < large.size() && large.docIDs[j] == small.docIDs[i]) {
+                if (small == this)
+                    copyEntryTo(i, result);
+                else
+                    copyEntryTo(j, result);
                 j++;
+            }
         }
-        if (resultSet.size() == 0)
+        if (result.size() == 0)
             return null;
         return result;
     }
 
-    public PostingsList phraseWith(PostingsList other) {
-        Set<Integer> resultSet = new HashSet<Integer>();
+    /**
+     * Returns the documents where a position q of the other list has a position p
+     * of this list with <code>minGap <= q - p <= maxGap</code> and p != q, so a
+     * position never matches itself when a term is joined with itself. The
+     * positions of the result are the matching positions q of the other list, so
+     * the result can be joined with the next term of the query.
+     *
+     * For every document in both lists, the two sorted position arrays are merged
+     * with a sliding window, so every occurrence of a term is considered, also
+     * when the term occurs several times in the document or in the query.
+     */
+    PostingsList positionalJoin(PostingsList other, int minGap, int maxGap) {
         PostingsList result = new PostingsList();
         int i = 0;
         int j = 0;
         while (i < size() && j < other.size()) {
-            PostingsEntry e_self = get(i);
-            PostingsEntry e_other = other.get(j);
-            if (e_self.docID == e_other.docID && !resultSet.contains(e_self.docID)) {
-                int diff = e_other.offset - e_self.offset - 1;
-                if (diff == 0) {
-                    resultSet.add(e_self.docID);
-                    result.addEntry(e_other);
-                    i++;
-                    j++;
-                    // making up phrase
-                } else if (diff > 0)
-                    i++;
-                else
-                    j++;
-            } else if (e_self.docID < e_other.docID)
+            int d_self = docIDs[i];
+            int d_other = other.docIDs[j];
+            if (d_self == d_other) {
+                int p = posStart[i];
+                int pEnd = p + tfs[i];
+                for (int k = 0; k < other.tfs[j]; k++) {
+                    int pos = other.getPosition(j, k);
+                    while (p < pEnd && positions[p] < pos - maxGap)
+                        p++;
+                    if (p == pEnd)
+                        break;
+                    int c = positions[p] == pos ? p + 1 : p;
+                    if (c < pEnd && positions[c] <= pos - minGap)
+                        result.add(d_other, pos);
+                }
                 i++;
-            else
                 j++;
+            } else if (d_self < d_other)
+                i = advanceTo(i + 1, d_other);
+            else
+                j = other.advanceTo(j + 1, d_self);
         }
+        return result;
+    }
+
+    /**
+     * Returns the documents where a position of the other list directly follows
+     * a position of this list. The positions of the result are those of the other
+     * list, so the result can be joined with the next term of a phrase.
+     */
+    public PostingsList phraseWith(PostingsList other) {
+        return positionalJoin(other, 1, 1);
+    }
 
+    /**
+     * Returns the documents where the other term occurs at most <code>k</code>
+     * positions before or after this term. The positions of the result are those
+     * of the other list.
+     */
+    public PostingsList nearWith(PostingsList other, int k) {
+        return positionalJoin(other, -k, k);
+    }
+
+    /**
+     * Merges postings lists sorted by docID into one list sorted by docID, with
+     * the positions of a document in several lists joined in increasing order.
+     * The lists are merged in one pass, without sorting the concatenation.
+     */
+    public static PostingsList union(List<PostingsList> lists) {
+        if (lists.size() == 1)
+            return lists.get(0);
+        PostingsList result = new PostingsList();
+        int[] next = new int[lists.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(lists.size(),
+                (a, b) -> Integer.compare(lists.get(a).docIDs[next[a]], lists.get(b).docIDs[next[b]]));
+        for (int l = 0; l < lists.size(); l++) {
+            if (lists.get(l).size() > 0)
+                queue.add(l);
+        }
+        int[] merged = new int[16];
+        boolean disjoint = true;
+        while (!queue.isEmpty()) {
+            int l = queue.poll();
+            int docID = lists.get(l).docIDs[next[l]];
+            int n = 0;
+            boolean sorted = true;
+            while (true) {
+                PostingsList pl = lists.get(l);
+                int tf = pl.tfs[next[l]];
+                if (n + tf > merged.length)
+                    merged = Arrays.copyOf(merged, 2 * (n + tf));
+                if (n > 0)
+                    sorted = false;
+                System.arraycopy(pl.positions, pl.posStart[next[l]], merged, n, tf);
+                n += tf;
+                if (++next[l] < pl.size())
+                    queue.add(l);
+                if (queue.isEmpty() || lists.get(queue.peek()).docIDs[next[queue.peek()]] != docID)
+                    break;
+                l = queue.poll();
+                disjoint = false;
+            }
+            if (!sorted)
+                Arrays.sort(merged, 0, n);
+            for (int k = 0; k < n; k++)
+                result.add(docID, merged[k]);
+        }
+        if (disjoint) {
+            // Every entry comes unchanged from one of the lists
+            double bound = 0.0;
+            for (PostingsList pl : lists)
+                bound = Math.max(bound, pl.maxTermWeight);
+            result.maxTermWeight = bound;
+        }
         return result;
     }
 
     public String format() {
         StringBuilder result = new StringBuilder("");
-        for (int i = 0; i < size(); i++) {
-            result.append(list.get(i).format());
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < tfs[i]; k++) {
+                result.append(docIDs[i]).append(":").append(getPosition(i, k)).append("\n");
+            }
         }
         return result.toString();
     }
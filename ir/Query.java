@@ -165,11 +165,14 @@ public class Query {
 
         for (int i = 0; i < docIsRelevant.length; i++) {
             if (docIsRelevant[i] == true) {
-                int labeled = results.get(i).docID;
+                int labeled = results.getDocID(i);
                 // System.out.println("labeled id:" + labeled);
-                HashSet<String> docTokenSet = Index.docTokens.get(labeled);
-                for (String token : docTokenSet) {
-                    double tf_idf = engine.tfidf.tf_idf(token, labeled);
+                TermVector vector = engine.index.getTermVector(labeled);
+                if (vector == null)
+                    continue;
+                for (int j = 0; j < vector.size(); j++) {
+                    String token = vector.getTerm(j);
+                    double tf_idf = vector.getTf(j) * engine.tfidf.idf(token, labeled);
                     double newWeight;
                     if (weightMap.get(token) == null) {
                         newWeight = tf_idf * beta;
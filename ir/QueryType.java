@@ -11,5 +11,5 @@ package ir;
  * The different types of search queries we are considering in the course.
  */
 public enum QueryType {
-    INTERSECTION_QUERY, PHRASE_QUERY, RANKED_QUERY
+    INTERSECTION_QUERY, PHRASE_QUERY, RANKED_QUERY, PROXIMITY_QUERY
 }
\ No newline at end of file
@@ -0,0 +1,578 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An index whose documents are held by SearchNodes in other processes. Every
+ * read is sent to all nodes and their responses are merged: postings lists by
+ * docID, document frequencies by summing. A RemoteSearcher sends whole queries
+ * to the nodes instead, so that only the results travel.
+ *
+ * Each node is reached through a small pool of connections. A connection
+ * carries many requests at a time: a request is written as soon as it is made
+ * and a reader thread hands each response to the request with its ID, so the
+ * requests to all nodes, and all terms of a query, are sent before any answer
+ * is waited for. A node that has not answered within TIMEOUT_MILLIS is left
+ * out of the result, with a warning, rather than holding up the query. The
+ * connection of a request that was given up on is closed, since the node may
+ * be hung, and the pool opens a new one when it is needed.
+ *
+ * The names and lengths of all documents, and the terms of all nodes, are
+ * fetched from the nodes when the index is opened. The terms make up the
+ * vocabulary of the index (see getTermAutomaton), from which the Engine builds
+ * its k-gram index, so that wildcard queries and spelling correction work as on
+ * a local index. Term vectors are fetched from the node of the document.
+ */
+public class RemoteIndex implements Index {
+
+    /** Number of connections to each node. */
+    public static final int POOL_SIZE = 2;
+
+    /** How long a query waits for the nodes to answer. */
+    public static final long TIMEOUT_MILLIS = 2000;
+
+    /** How long opening the index waits for the documents of the nodes. */
+    public static final long LOAD_TIMEOUT_MILLIS = 60000;
+
+    public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /** An open connection to a node, with the requests waiting for a response. */
+    static class Connection {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final ConcurrentHashMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<Integer, CompletableFuture<byte[]>>();
+        private final AtomicInteger nextID = new AtomicInteger();
+        volatile boolean closed = false;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> read(in), "remote-index-" + address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Sends a request and returns its response to come. A caller that gives
+         * up on the response completes it exceptionally, which closes the
+         * connection.
+         */
+        CompletableFuture<byte[]> send(byte type, byte[] payload) {
+            CompletableFuture<byte[]> response = new CompletableFuture<byte[]>();
+            int requestID = nextID.incrementAndGet();
+            pending.put(requestID, response);
+            response.whenComplete((result, failure) -> {
+                // Still pending if the caller gave up waiting
+                if (pending.remove(requestID) != null && !closed)
+                    close(new IOException("Request " + requestID + " was given up on"));
+            });
+            try {
+                synchronized (out) {
+                    SearchNode.writeFrame(out, requestID, type, payload);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            if (closed)
+                response.completeExceptionally(new IOException("Connection closed"));
+            return response;
+        }
+
+        /** Completes the requests as their responses arrive. */
+        private void read(DataInputStream in) {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 5 || length > SearchNode.MAX_FRAME)
+                        throw new IOException("Bad frame length " + length);
+                    int requestID = in.readInt();
+                    byte status = in.readByte();
+                    byte[] payload = new byte[length - 5];
+                    in.readFully(payload);
+                    // The response of a request that was given up on is dropped
+                    CompletableFuture<byte[]> response = pending.remove(requestID);
+                    if (response == null)
+                        continue;
+                    if (status == SearchNode.OK)
+                        response.complete(payload);
+                    else
+                        response.completeExceptionally(
+                                new IOException(new DataInputStream(new ByteArrayInputStream(payload)).readUTF()));
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            for (CompletableFuture<byte[]> response : pending.values()) {
+                response.completeExceptionally(cause);
+            }
+            pending.clear();
+        }
+    }
+
+    /** A node and its connections, which are opened when first needed. */
+    static class Node {
+        final InetSocketAddress address;
+        private final Connection[] pool = new Connection[Math.max(1, POOL_SIZE)];
+        private int next = 0;
+
+        Node(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /** Returns the next connection of the pool, reopened if it was closed. */
+        private synchronized Connection connection() throws IOException {
+            next = (next + 1) % pool.length;
+            if (pool[next] == null || pool[next].closed)
+                pool[next] = new Connection(address);
+            return pool[next];
+        }
+
+        CompletableFuture<byte[]> send(byte type, byte[] payload) {
+            try {
+                return connection().send(type, payload);
+            } catch (IOException e) {
+                CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        synchronized void close() {
+            for (Connection connection : pool) {
+                if (connection != null)
+                    connection.close(new IOException("Index closed"));
+            }
+        }
+    }
+
+    /** Writes the payload of a request. */
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Reads the response of one node. */
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final Node[] nodes;
+
+    /** The documents of all nodes. */
+    private final DocTable docTable = new DocTable();
+
+    /** The terms of all nodes. */
+    private final TermAutomaton vocabulary;
+
+    /** The postings lists read by the query running in each thread. */
+    private final ThreadLocal<HashMap<String, PostingsList>> queryCache = new ThreadLocal<HashMap<String, PostingsList>>();
+
+    /**
+     * Opens the index held by the nodes, which must be given in the order of
+     * their node numbers.
+     */
+    public RemoteIndex(List<InetSocketAddress> addresses) {
+        nodes = new Node[addresses.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(addresses.get(i));
+        }
+        List<int[]> numbers = fanOut(SearchNode.DOCS, out -> {
+        }, LOAD_TIMEOUT_MILLIS, this::readDocs);
+        for (int i = 0; i < nodes.length; i++) {
+            int[] number = numbers.get(i);
+            if (number != null && (number[0] != i || number[1] != nodes.length))
+                System.err.println("Warning: " + nodes[i].address + " is node " + number[0] + " of " + number[1]
+                        + ", not node " + i + " of " + nodes.length);
+        }
+        HashSet<String> terms = new HashSet<String>();
+        fanOut(SearchNode.VOCABULARY, out -> {
+        }, LOAD_TIMEOUT_MILLIS, in -> {
+            for (int n = in.readInt(); n > 0; n--) {
+                terms.add(in.readUTF());
+            }
+            return null;
+        });
+        TermAutomaton.Builder builder = new TermAutomaton.Builder();
+        for (String term : terms) {
+            builder.add(term);
+        }
+        vocabulary = builder.build();
+    }
+
+    /** Parses a comma-separated list of host:port. */
+    public static List<InetSocketAddress> parseAddresses(String list) {
+        ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String address : list.split(",")) {
+            int colon = address.lastIndexOf(':');
+            addresses.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    /**
+     * Reads the documents of a node into the table. Returns the number of the
+     * node and the number of nodes it was started with.
+     */
+    private int[] readDocs(DataInputStream in) throws IOException {
+        int node = in.readInt();
+        int numNodes = in.readInt();
+        for (int n = in.readInt(); n > 0; n--) {
+            int docID = in.readInt();
+            String name = in.readUTF();
+            docTable.put(docID, name, in.readInt(), null);
+        }
+        return new int[] { node, numNodes };
+    }
+
+    /** Returns the bytes of the payload of a request. */
+    private static byte[] encode(Payload payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            payload.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sends the request to every node, and waits until all have answered or
+     * the timeout has passed. The result of a node that failed or did not answer
+     * in time is null.
+     */
+    private <T> List<T> fanOut(byte type, Payload payload, long timeoutMillis, Reader<T> reader) {
+        byte[] request = encode(payload);
+        ArrayList<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+        for (Node node : nodes) {
+            responses.add(node.send(type, request));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ArrayList<T> results = new ArrayList<T>(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            T result = null;
+            try {
+                byte[] response = responses.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                result = reader.read(new DataInputStream(new ByteArrayInputStream(response)));
+            } catch (TimeoutException e) {
+                System.err.println("Warning: " + nodes[i].address + " did not answer within " + timeoutMillis
+                        + " ms; its documents are left out");
+            } catch (ExecutionException | IOException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                System.err.println("Warning: " + nodes[i].address + " failed: " + cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            results.add(result);
+        }
+        while (results.size() < nodes.length) {
+            results.add(null);
+        }
+        giveUp(responses);
+        return results;
+    }
+
+    /**
+     * Gives up on the responses that have not arrived, which closes their
+     * connections.
+     */
+    private static void giveUp(List<CompletableFuture<byte[]>> responses) {
+        for (CompletableFuture<byte[]> response : responses) {
+            response.completeExceptionally(new TimeoutException());
+        }
+    }
+
+    public DocTable getDocTable() {
+        return docTable;
+    }
+
+    /**
+     * Does nothing: the documents of a remote index are indexed by the nodes
+     * (see SearchNode), and the Engine does not index when it is given nodes.
+     */
+    public void insert(String token, int docID, int offset) {
+    }
+
+    /** Returns the terms of all nodes. */
+    public TermAutomaton getTermAutomaton() {
+        return vocabulary;
+    }
+
+    /**
+     * Returns the terms of the document with their frequencies, as held by the
+     * node of the document, or null if the node does not know them or does not
+     * answer.
+     */
+    public TermVector getTermVector(int docID) {
+        if (docID < 0)
+            return null;
+        Node node = nodes[docID % nodes.length];
+        CompletableFuture<byte[]> response = node.send(SearchNode.TERM_VECTOR, encode(out -> out.writeInt(docID)));
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(response.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)));
+            if (!in.readBoolean())
+                return null;
+            TreeMap<Integer, Integer> tfs = new TreeMap<Integer, Integer>();
+            for (int n = in.readInt(); n > 0; n--) {
+                int id = vocabulary.getID(in.readUTF());
+                int tf = in.readInt();
+                if (id >= 0)
+                    tfs.put(id, tf);
+            }
+            int[] termIDs = new int[tfs.size()];
+            int[] counts = new int[tfs.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : tfs.entrySet()) {
+                termIDs[i] = entry.getKey();
+                counts[i++] = entry.getValue();
+            }
+            return new TermVector(termIDs, counts, vocabulary);
+        } catch (TimeoutException | ExecutionException | IOException e) {
+            System.err.println("Warning: no term vector of document " + docID + " from " + node.address + ": " + e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            giveUp(Collections.singletonList(response));
+        }
+    }
+
+    /**
+     * Starts keeping the postings lists read by the query, so that every term
+     * is only fetched once.
+     */
+    public void beginQuery() {
+        if (queryCache.get() == null)
+            queryCache.set(new HashMap<String, PostingsList>());
+    }
+
+    public void endQuery() {
+        queryCache.remove();
+    }
+
+    /**
+     * Fetches the postings lists of the terms from all nodes at once, into the
+     * cache of the running query. Does nothing outside a query.
+     */
+    public void prefetch(Collection<String> terms) {
+        HashMap<String, PostingsList> cache = queryCache.get();
+        if (cache == null)
+            return;
+        ArrayList<String> missing = new ArrayList<String>();
+        for (String term : terms) {
+            if (!cache.containsKey(term) && !missing.contains(term))
+                missing.add(term);
+        }
+        if (!missing.isEmpty())
+            cache.putAll(fetchPostings(missing));
+    }
+
+    /**
+     * Returns the postings lists of the terms, merged from all nodes, with null
+     * for the terms no node has. All requests are sent before the responses are
+     * read.
+     */
+    private HashMap<String, PostingsList> fetchPostings(List<String> terms) {
+        ArrayList<ArrayList<CompletableFuture<byte[]>>> responses = new ArrayList<ArrayList<CompletableFuture<byte[]>>>();
+        for (Node node : nodes) {
+            ArrayList<CompletableFuture<byte[]>> sent = new ArrayList<CompletableFuture<byte[]>>();
+            for (String term : terms) {
+                sent.add(node.send(SearchNode.POSTINGS, encode(out -> out.writeUTF(term))));
+            }
+            responses.add(sent);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        ArrayList<ArrayList<PostingsList>> lists = new ArrayList<ArrayList<PostingsList>>();
+        for (int t = 0; t < terms.size(); t++) {
+            lists.add(new ArrayList<PostingsList>());
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            try {
+                // A node is left out of all lists if it misses one
+                PostingsList[] fetched = new PostingsList[terms.size()];
+                for (int t = 0; t < terms.size(); t++) {
+                    byte[] response = responses.get(i).get(t).get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS);
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+                    if (in.readBoolean()) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        fetched[t] = PostingsCodec.decode(data, 0, data.length);
+                    }
+                }
+                for (int t = 0; t < terms.size(); t++) {
+                    if (fetched[t] != null)
+                        lists.get(t).add(fetched[t]);
+                }
+            } catch (TimeoutException e) {
+                System.err.println("Warning: " + nodes[i].address + " did not answer within " + TIMEOUT_MILLIS
+                        + " ms; its documents are left out");
+            } catch (ExecutionException | IOException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                System.err.println("Warning: " + nodes[i].address + " failed: " + cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ArrayList<CompletableFuture<byte[]>> sent : responses) {
+            giveUp(sent);
+        }
+        HashMap<String, PostingsList> result = new HashMap<String, PostingsList>();
+        for (int t = 0; t < terms.size(); t++) {
+            result.put(terms.get(t), lists.get(t).isEmpty() ? null : PostingsList.union(lists.get(t)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the postings of the term from all nodes, or null if no node has
+     * the term.
+     */
+    public PostingsList getPostings(String token) {
+        HashMap<String, PostingsList> cache = queryCache.get();
+        if (cache != null && cache.containsKey(token))
+            return cache.get(token);
+        PostingsList pl = fetchPostings(Collections.singletonList(token)).get(token);
+        if (cache != null)
+            cache.put(token, pl);
+        return pl;
+    }
+
+    public int getDocumentFrequency(String token) {
+        HashMap<String, PostingsList> cache = queryCache.get();
+        if (cache != null && cache.containsKey(token)) {
+            PostingsList pl = cache.get(token);
+            return pl == null ? 0 : pl.size();
+        }
+        int df = 0;
+        for (Integer n : fanOut(SearchNode.DOC_FREQ, out -> out.writeUTF(token), TIMEOUT_MILLIS, DataInputStream::readInt)) {
+            df += n == null ? 0 : n;
+        }
+        return df;
+    }
+
+    /**
+     * Returns the terms starting with the prefix in any node, or null if a node
+     * does not keep its terms in sorted order.
+     */
+    public List<String> getTermsWithPrefix(String prefix) {
+        List<List<String>> found = fanOut(SearchNode.TERMS_WITH_PREFIX, out -> out.writeUTF(prefix), TIMEOUT_MILLIS,
+                in -> {
+                    if (!in.readBoolean())
+                        return null;
+                    ArrayList<String> terms = new ArrayList<String>();
+                    for (int n = in.readInt(); n > 0; n--) {
+                        terms.add(in.readUTF());
+                    }
+                    return terms;
+                });
+        TreeSet<String> terms = new TreeSet<String>();
+        for (List<String> list : found) {
+            if (list == null)
+                return null;
+            terms.addAll(list);
+        }
+        return new ArrayList<String>(terms);
+    }
+
+    /**
+     * Expands the terms of the query in every node. Returns, for every query
+     * term, the terms it expands to in any node, with the number of documents
+     * of each term in all nodes.
+     */
+    ArrayList<HashMap<String, Integer>> expand(Query query) {
+        String queryString = toString(query);
+        ArrayList<HashMap<String, Integer>> merged = new ArrayList<HashMap<String, Integer>>();
+        for (int n = 0; n < query.size(); n++) {
+            merged.add(new HashMap<String, Integer>());
+        }
+        // The responses are read one node at a time, on this thread
+        fanOut(SearchNode.EXPAND, out -> out.writeUTF(queryString), TIMEOUT_MILLIS, in -> {
+            int size = in.readInt();
+            for (int n = 0; n < size; n++) {
+                for (int m = in.readInt(); m > 0; m--) {
+                    String term = in.readUTF();
+                    merged.get(n).merge(term, in.readInt(), Integer::sum);
+                }
+            }
+            return null;
+        });
+        return merged;
+    }
+
+    /**
+     * Evaluates the query in every node and returns their results, with null
+     * for the nodes without a result. Ranked queries are ranked with the given
+     * document frequencies and number of documents, and the <code>k</code> best
+     * documents of each node are returned.
+     */
+    List<PostingsList> search(Query query, QueryType queryType, Map<String, Integer> df, int numDocs, int k) {
+        String queryString = toString(query);
+        return fanOut(SearchNode.SEARCH, out -> {
+            out.writeByte(queryType.ordinal());
+            out.writeUTF(queryString);
+            if (queryType == QueryType.RANKED_QUERY) {
+                out.writeInt(numDocs);
+                out.writeInt(df.size());
+                for (Map.Entry<String, Integer> entry : df.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                out.writeInt(k);
+            }
+        }, TIMEOUT_MILLIS, in -> {
+            if (!in.readBoolean())
+                return null;
+            PostingsList result = new PostingsList();
+            for (int n = in.readInt(); n > 0; n--) {
+                int docID = in.readInt();
+                result.addEntry(new PostingsEntry(docID, in.readDouble()));
+            }
+            return result;
+        });
+    }
+
+    /** The terms of the query separated by spaces, as a Query is parsed from. */
+    private static String toString(Query query) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < query.size(); n++) {
+            if (n > 0)
+                sb.append(' ');
+            sb.append(query.getTermStringAt(n));
+        }
+        return sb.toString();
+    }
+
+    /** Closes the connections to the nodes. */
+    public void cleanup() {
+        for (Node node : nodes) {
+            node.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+
+/**
+ * Searches a RemoteIndex by sending whole queries to its nodes, which evaluate
+ * them on their own documents, and merging the results.
+ *
+ * As in a PartitionedSearcher, the results of intersection, phrase and
+ * proximity queries are joined by docID, and tf-idf ranked queries take two
+ * rounds: the nodes first report the terms of the query with their document
+ * frequencies, and then rank their documents with the idf of all nodes. The
+ * other rankings need PageRank or HITS, which only the coordinator has, so for
+ * them the postings lists of all query terms are fetched from the nodes at once
+ * and the query is evaluated here.
+ */
+public class RemoteSearcher extends Searcher {
+
+    private final RemoteIndex remote;
+
+    public RemoteSearcher(RemoteIndex index, KGramIndex kgIndex, PageRank pageRank, HITSRanker hitsRanker,
+            TFIDF tfidf) {
+        super(index, kgIndex, pageRank, hitsRanker, tfidf);
+        this.remote = index;
+    }
+
+    public PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
+        if (query.size() == 0)
+            return null;
+        if (queryType == QueryType.RANKED_QUERY) {
+            if (rankingType == RankingType.TF_IDF)
+                return searchRanked(query);
+            return searchPostings(query, queryType, rankingType);
+        }
+
+        ArrayList<PostingsList> found = new ArrayList<PostingsList>();
+        for (PostingsList result : remote.search(query, queryType, null, 0, 0)) {
+            if (result != null)
+                found.add(result);
+        }
+        if (found.isEmpty()) {
+            // As on a single index, a phrase or proximity query whose terms all
+            // occur has an empty result rather than none
+            if (queryType == QueryType.INTERSECTION_QUERY)
+                return null;
+            Query stripped = queryType == QueryType.PROXIMITY_QUERY ? stripNearOperators(query, new ArrayList<Integer>())
+                    : query;
+            for (HashMap<String, Integer> options : remote.expand(stripped)) {
+                if (!options.values().stream().anyMatch(df -> df > 0))
+                    return null;
+            }
+            return stripped.size() > 0 ? new PostingsList() : null;
+        }
+        return PostingsList.union(found);
+    }
+
+    /**
+     * Ranks the documents of every node with the document frequencies of all
+     * nodes, and merges the best documents of each.
+     */
+    private PostingsList searchRanked(Query query) {
+        HashMap<String, Integer> df = new HashMap<String, Integer>();
+        for (HashMap<String, Integer> options : remote.expand(query)) {
+            df.putAll(options);
+        }
+        List<PostingsList> results = remote.search(query, QueryType.RANKED_QUERY, df, remote.getNumDocs(), TOP_K);
+        return PartitionedSearcher.mergeByScore(results, TOP_K);
+    }
+
+    /**
+     * Evaluates the query on this side, after fetching the postings lists of all
+     * its terms from the nodes in one round.
+     */
+    private PostingsList searchPostings(Query query, QueryType queryType, RankingType rankingType) {
+        remote.beginQuery();
+        try {
+            ArrayList<String> terms = new ArrayList<String>();
+            for (ArrayList<String> options : kgIndex.toLinkedQuery(query, remote).values()) {
+                terms.addAll(options);
+            }
+            remote.prefetch(terms);
+            return super.search(query, queryType, rankingType);
+        } finally {
+            remote.endQuery();
+        }
+    }
+}
@@ -66,6 +66,7 @@ public class SearchGUI extends JFrame {
     JRadioButtonMenuItem intersectionItem = new JRadioButtonMenuItem("Intersection query");
     JRadioButtonMenuItem phraseItem = new JRadioButtonMenuItem("Phrase query");
     JRadioButtonMenuItem rankedItem = new JRadioButtonMenuItem("Ranked retrieval");
+    JRadioButtonMenuItem proximityItem = new JRadioButtonMenuItem("Proximity query (NEAR/k)");
     JRadioButtonMenuItem tfidfItem = new JRadioButtonMenuItem("tf-idf");
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem("PageRank");
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem("Combination");
@@ -102,6 +103,7 @@ public class SearchGUI extends JFrame {
         optionsMenu.add(intersectionItem);
         optionsMenu.add(phraseItem);
         optionsMenu.add(rankedItem);
+        optionsMenu.add(proximityItem);
         rankingMenu.add(tfidfItem);
         rankingMenu.add(pagerankItem);
         rankingMenu.add(combinationItem);
@@ -109,6 +111,7 @@ public class SearchGUI extends JFrame {
         queries.add(intersectionItem);
         queries.add(phraseItem);
         queries.add(rankedItem);
+        queries.add(proximityItem);
         ranking.add(tfidfItem);
         ranking.add(pagerankItem);
         ranking.add(combinationItem);
@@ -157,11 +160,9 @@ public class SearchGUI extends JFrame {
                 // }
                 // Search and print results. Access to the index is synchronized since
                 // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // (this might corrupt the index), unless the index is concurrent.
                 long startTime = System.currentTimeMillis();
-                synchronized (engine.indexLock) {
-                    results = engine.searcher.search(query, queryType, rankingType);
-                }
+                results = engine.search(query, queryType, rankingType);
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
                 //
@@ -175,7 +176,7 @@ public class SearchGUI extends JFrame {
                     if (engine.speller != null) {
                         startTime = System.currentTimeMillis();
                         SpellingOptionsDialog dialog = new SpellingOptionsDialog(50);
-                        String[] corrections = engine.speller.check(query, 10);
+                        String[] corrections = engine.checkSpelling(query, 10);
                         elapsedTime = System.currentTimeMillis() - startTime;
                         System.err.println("It took " + elapsedTime / 1000.0 + "s to check spelling");
                         if (corrections != null && corrections.length > 0) {
@@ -222,6 +223,13 @@ public class SearchGUI extends JFrame {
         };
         rankedItem.addActionListener(setRankedQuery);
 
+        Action setProximityQuery = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                queryType = QueryType.PROXIMITY_QUERY;
+            }
+        };
+        proximityItem.addActionListener(setProximityQuery);
+
         Action setTfidfRanking = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
                 rankingType = RankingType.TF_IDF;
@@ -278,9 +286,9 @@ public class SearchGUI extends JFrame {
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for (i = 0; i < results.size() && i < maxResultsToDisplay; i++) {
-            String description = i + ". " + displayableFileName(engine.index.docNames.get(results.get(i).docID));
+            String description = i + ". " + displayableFileName(engine.index.getDocName(results.getDocID(i)));
             if (queryType == QueryType.RANKED_QUERY) {
-                description += "   " + String.format("%.5f", results.get(i).score);
+                description += "   " + String.format("%.5f", results.getScore(i));
             }
             box[i] = new JCheckBox();
             box[i].setSelected(false);
@@ -0,0 +1,392 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server that holds one part of the documents in a PersistentHashedIndex and
+ * answers requests from a RemoteIndex over TCP.
+ *
+ * Of n nodes, node i holds the files at positions i, i + n, i + 2n, ... in the
+ * order the indexer visits them. Its documents are numbered from 0 in its own
+ * index, and are known to the coordinator by the docID they would have in a
+ * single index, <code>local * n + i</code>. Every node keeps its index in
+ * PersistentHashedIndex.INDEXDIR, so nodes on the same machine have to run in
+ * directories of their own.
+ *
+ * Requests and responses are frames of the length of the rest of the frame,
+ * the request ID, a request type (or for a response, OK or ERROR) and the
+ * payload, written with a DataOutputStream. A client may send many requests on
+ * a connection without waiting for the responses. The requests are answered
+ * by a pool of worker threads, and each response carries the ID of its request,
+ * since the responses may come in a different order.
+ *
+ * <pre>
+ * java ir.SearchNode -port 7001 -node 0 -nodes 2 -d corpus -p patterns.txt
+ * java ir.SearchNode -port 7001 -node 0 -nodes 2 -ni
+ * </pre>
+ */
+public class SearchNode {
+
+    /** The documents of the node: node, number of nodes, then (docID, name, length) per document. */
+    static final byte DOCS = 1;
+
+    /** The postings of a term, as a PostingsCodec record with global docIDs. */
+    static final byte POSTINGS = 2;
+
+    /** The document frequency of a term. */
+    static final byte DOC_FREQ = 3;
+
+    /** The terms starting with a prefix, see Index.getTermsWithPrefix. */
+    static final byte TERMS_WITH_PREFIX = 4;
+
+    /** The terms each query term expands to, with the number of documents of each. */
+    static final byte EXPAND = 5;
+
+    /** The result of a whole query on the documents of the node. */
+    static final byte SEARCH = 6;
+
+    /** All terms of the node. */
+    static final byte VOCABULARY = 7;
+
+    /** The terms of a document, by global docID, with their frequencies. */
+    static final byte TERM_VECTOR = 8;
+
+    static final byte OK = 0;
+
+    static final byte ERROR = 1;
+
+    /** Largest frame accepted. */
+    static final int MAX_FRAME = 1 << 30;
+
+    /** Number of threads answering requests. */
+    public static final int WORKER_THREADS = 4;
+
+    private final Index index;
+
+    private final KGramIndex kgIndex;
+
+    /** The number of this node, and the number of nodes. */
+    private final int node;
+    private final int numNodes;
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS);
+
+    public SearchNode(Index index, KGramIndex kgIndex, int node, int numNodes) {
+        this.index = index;
+        this.kgIndex = kgIndex;
+        this.node = node;
+        this.numNodes = numNodes;
+    }
+
+    private int toGlobal(int docID) {
+        return docID * numNodes + node;
+    }
+
+    /** Writes a frame; the caller flushes the stream. */
+    static void writeFrame(DataOutputStream out, int requestID, byte type, byte[] payload) throws IOException {
+        out.writeInt(5 + payload.length);
+        out.writeInt(requestID);
+        out.writeByte(type);
+        out.write(payload);
+    }
+
+    /** Accepts connections until the process is stopped. */
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.err.println("Search node " + node + " of " + numNodes + " listening on port " + port);
+            while (true) {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> handle(socket), "search-node-connection");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+    }
+
+    /** Reads the requests of one connection and hands them to the workers. */
+    private void handle(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 5 || length > MAX_FRAME)
+                    throw new IOException("Bad frame length " + length);
+                int requestID = in.readInt();
+                byte type = in.readByte();
+                byte[] payload = new byte[length - 5];
+                in.readFully(payload);
+                workers.execute(() -> respond(out, requestID, type, payload));
+            }
+        } catch (IOException e) {
+            System.err.println("Connection closed: " + e);
+        }
+    }
+
+    private void respond(DataOutputStream out, int requestID, byte type, byte[] payload) {
+        byte status = OK;
+        byte[] response;
+        try {
+            response = answer(type, new DataInputStream(new ByteArrayInputStream(payload)));
+        } catch (IOException | RuntimeException e) {
+            status = ERROR;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                new DataOutputStream(bytes).writeUTF(String.valueOf(e));
+            } catch (IOException ignored) {
+            }
+            response = bytes.toByteArray();
+        }
+        synchronized (out) {
+            try {
+                writeFrame(out, requestID, status, response);
+                out.flush();
+            } catch (IOException e) {
+                // The client has gone; the connection thread notices too
+            }
+        }
+    }
+
+    private byte[] answer(byte type, DataInputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        switch (type) {
+        case DOCS:
+            writeDocs(out);
+            break;
+
+        case POSTINGS: {
+            PostingsList pl = index.getPostings(in.readUTF());
+            out.writeBoolean(pl != null && pl.size() > 0);
+            if (pl != null && pl.size() > 0) {
+                byte[] data = PostingsCodec.encode(toGlobal(pl), index);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            break;
+        }
+
+        case DOC_FREQ:
+            out.writeInt(index.getDocumentFrequency(in.readUTF()));
+            break;
+
+        case TERMS_WITH_PREFIX: {
+            List<String> terms = index.getTermsWithPrefix(in.readUTF());
+            out.writeBoolean(terms != null);
+            if (terms != null) {
+                out.writeInt(terms.size());
+                for (String term : terms) {
+                    out.writeUTF(term);
+                }
+            }
+            break;
+        }
+
+        case EXPAND: {
+            Query query = new Query(in.readUTF());
+            index.beginQuery();
+            try {
+                HashMap<Integer, ArrayList<String>> converted = kgIndex.toLinkedQuery(query, index);
+                out.writeInt(query.size());
+                for (int n = 0; n < query.size(); n++) {
+                    ArrayList<String> options = converted.get(n);
+                    out.writeInt(options.size());
+                    for (String opt : options) {
+                        out.writeUTF(opt);
+                        out.writeInt(index.getDocumentFrequency(opt));
+                    }
+                }
+            } finally {
+                index.endQuery();
+            }
+            break;
+        }
+
+        case SEARCH:
+            writeResult(search(in), out);
+            break;
+
+        case VOCABULARY: {
+            TermAutomaton terms = index.getTermAutomaton();
+            int size = terms == null ? 0 : terms.size();
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+                out.writeUTF(terms.getTerm(id));
+            }
+            break;
+        }
+
+        case TERM_VECTOR: {
+            int docID = in.readInt();
+            TermVector vector = docID % numNodes == node ? index.getTermVector(docID / numNodes) : null;
+            out.writeBoolean(vector != null);
+            if (vector != null) {
+                out.writeInt(vector.size());
+                for (int i = 0; i < vector.size(); i++) {
+                    out.writeUTF(vector.getTerm(i));
+                    out.writeInt(vector.getTf(i));
+                }
+            }
+            break;
+        }
+
+        default:
+            throw new IOException("Unknown request type " + type);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Evaluates a query: the query type, the query, and for ranked queries the
+     * number of documents, the document frequencies of the terms in all nodes,
+     * and the number of results.
+     */
+    private PostingsList search(DataInputStream in) throws IOException {
+        QueryType queryType = QueryType.values()[in.readByte()];
+        Query query = new Query(in.readUTF());
+        if (queryType != QueryType.RANKED_QUERY)
+            return new Searcher(index, kgIndex, null, null, new TFIDF(index)).search(query, queryType,
+                    RankingType.TF_IDF);
+        int numDocs = in.readInt();
+        HashMap<String, Integer> df = new HashMap<String, Integer>();
+        for (int n = in.readInt(); n > 0; n--) {
+            df.put(in.readUTF(), in.readInt());
+        }
+        int k = in.readInt();
+        index.beginQuery();
+        try {
+            HashMap<Integer, ArrayList<String>> converted = kgIndex.toLinkedQuery(query, index);
+            return new PartitionedSearcher.PartitionTFIDF(index, df, numDocs).rankTopK(converted, k);
+        } finally {
+            index.endQuery();
+        }
+    }
+
+    /** Writes a result as its size and the global docID and score of each entry, or false if it is null. */
+    private void writeResult(PostingsList result, DataOutputStream out) throws IOException {
+        out.writeBoolean(result != null);
+        if (result == null)
+            return;
+        out.writeInt(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            out.writeInt(toGlobal(result.getDocID(i)));
+            out.writeDouble(result.getScore(i));
+        }
+    }
+
+    private void writeDocs(DataOutputStream out) throws IOException {
+        out.writeInt(node);
+        out.writeInt(numNodes);
+        int count = 0;
+        for (int docID = 0; docID < index.getDocIDLimit(); docID++) {
+            if (index.getDocName(docID) != null)
+                count++;
+        }
+        out.writeInt(count);
+        for (int docID = 0; docID < index.getDocIDLimit() && count > 0; docID++) {
+            String name = index.getDocName(docID);
+            if (name != null) {
+                out.writeInt(toGlobal(docID));
+                out.writeUTF(name);
+                out.writeInt(index.getDocLength(docID));
+                count--;
+            }
+        }
+    }
+
+    /** Returns a copy of the list with global docIDs and the same weight bound. */
+    private PostingsList toGlobal(PostingsList pl) {
+        PostingsList global = new PostingsList();
+        for (int i = 0; i < pl.size(); i++) {
+            for (int k = 0; k < pl.getTf(i); k++) {
+                global.add(toGlobal(pl.getDocID(i)), pl.getPosition(i, k));
+            }
+        }
+        global.maxTermWeight = TFIDF.maxTermWeight(pl, index);
+        return global;
+    }
+
+    /* ----------------------------------------------- */
+
+    public static void main(String[] args) throws IOException {
+        int port = 7001;
+        int node = 0;
+        int numNodes = 1;
+        int numThreads = 1;
+        String patterns_file = null;
+        boolean is_indexing = true;
+        ArrayList<String> dirNames = new ArrayList<String>();
+        int i = 0;
+        while (i < args.length) {
+            if ("-port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-node".equals(args[i]) && i + 1 < args.length) {
+                node = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-nodes".equals(args[i]) && i + 1 < args.length) {
+                numNodes = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                dirNames.add(args[i + 1]);
+                i += 2;
+            } else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                patterns_file = args[i + 1];
+                i += 2;
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                numThreads = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if ("-ni".equals(args[i])) {
+                is_indexing = false;
+                i++;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        if (node < 0 || node >= numNodes) {
+            System.err.println("The node number must be between 0 and " + (numNodes - 1));
+            return;
+        }
+
+        PersistentHashedIndex index = new PersistentHashedIndex();
+        // The same k as the k-gram index of the Engine
+        KGramIndex kgIndex = new KGramIndex(2);
+        if (is_indexing) {
+            Indexer indexer = new Indexer(index, kgIndex, patterns_file, numThreads);
+            ArrayList<File> files = new ArrayList<File>();
+            for (String dirName : dirNames) {
+                indexer.collectFiles(new File(dirName), files);
+            }
+            ArrayList<File> mine = new ArrayList<File>();
+            for (int f = node; f < files.size(); f += numNodes) {
+                mine.add(files.get(f));
+            }
+            long startTime = System.currentTimeMillis();
+            indexer.indexFiles(mine);
+            index.cleanup();
+            System.err.printf("Indexed %d of %d files in %.1f seconds%n", mine.size(), files.size(),
+                    (System.currentTimeMillis() - startTime) / 1000.0);
+        }
+        if (index.getTermAutomaton() != null)
+            kgIndex.setTermAutomaton(index.getTermAutomaton());
+        new SearchNode(index, kgIndex, node, numNodes).serve(port);
+    }
+}
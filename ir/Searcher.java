@@ -8,6 +8,7 @@
 package ir;
 
 import java.util.*;
+import java.util.regex.*;
 import java.lang.Math.*;
 import java.util.stream.Collectors;
 
@@ -26,6 +27,15 @@ public class Searcher {
     TFIDF tfidf;
     final double lamda = 0.92;
 
+    /** Number of results computed for a ranked query with tf-idf ranking. */
+    static final int TOP_K = 1000;
+
+    /** Window used between two terms of a proximity query without a NEAR/k operator. */
+    static final int DEFAULT_PROXIMITY = 5;
+
+    /** Matches the NEAR/k operator of proximity queries (the GUI lowercases queries). */
+    static final Pattern NEAR_OPERATOR = Pattern.compile("(?i)near/(\\d+)");
+
     public Searcher(Index index, KGramIndex kgIndex, PageRank pageRank, HITSRanker hitsRanker, TFIDF tfidf) {
         this.index = index;
         this.kgIndex = kgIndex;
@@ -52,17 +62,10 @@ public class Searcher {
         return pl_all;
     }
 
-    public void reduceToUnion(HashMap<Integer, ArrayList<PostingsList>> pl_all, boolean nodup) {
+    public void reduceToUnion(HashMap<Integer, ArrayList<PostingsList>> pl_all) {
         for (Integer idx : pl_all.keySet()) {
             ArrayList<PostingsList> arr = pl_all.get(idx);
-            PostingsList unioned = new PostingsList();
-            for (PostingsList pl : arr) {
-                unioned.concat(pl);
-            }
-            unioned.sortByDocIdAndOffset();
-            if (nodup == true) {
-                unioned = unioned.intersectWith(unioned); // remove duplicate docIDs
-            }
+            PostingsList unioned = PostingsList.union(arr);
             arr.clear();
             arr.add(unioned);
             // System.out.println("Unioned PostingsList for " + idx + " : " +
@@ -80,19 +83,55 @@ public class Searcher {
         return result_set;
     }
 
+    /**
+     * Removes the NEAR/k operators from a proximity query. The window between
+     * query term i and i+1 is put in <code>windows[i]</code>; terms without an
+     * operator between them get <code>DEFAULT_PROXIMITY</code>.
+     */
+    Query stripNearOperators(Query query, ArrayList<Integer> windows) {
+        Query stripped = new Query();
+        int window = DEFAULT_PROXIMITY;
+        for (int i = 0; i < query.size(); i++) {
+            Matcher m = NEAR_OPERATOR.matcher(query.getTermStringAt(i));
+            if (m.matches()) {
+                window = Integer.parseInt(m.group(1));
+            } else {
+                if (stripped.size() > 0) {
+                    windows.add(window);
+                }
+                stripped.queryterm.add(query.queryterm.get(i));
+                window = DEFAULT_PROXIMITY;
+            }
+        }
+        return stripped;
+    }
+
     /**
      * Searches the index for postings matching the query.
      * 
      * @return A postings list representing the result of the query.
      */
     public PostingsList search(Query query, QueryType queryType, RankingType rankingType) {
+        index.beginQuery();
+        try {
+            return evaluate(query, queryType, rankingType);
+        } finally {
+            index.endQuery();
+        }
+    }
+
+    private PostingsList evaluate(Query query, QueryType queryType, RankingType rankingType) {
         PostingsList result = new PostingsList();
+        ArrayList<Integer> windows = new ArrayList<Integer>();
+        if (queryType == QueryType.PROXIMITY_QUERY) {
+            query = stripNearOperators(query, windows);
+        }
         int n_terms = query.size();
 
         if (n_terms == 0)
             return null;
 
-        HashMap<Integer, ArrayList<String>> converted = kgIndex.toLinkedQuery(query);
+        HashMap<Integer, ArrayList<String>> converted = kgIndex.toLinkedQuery(query, index);
         HashMap<Integer, ArrayList<PostingsList>> pl_all = mapToPostingsList(converted);
         // System.out.println("query hash map size: " + converted.size());
         // System.out.println("mapped pl hash map size: " + pl_all.size());
@@ -107,30 +146,49 @@ public class Searcher {
         switch (queryType) {
         case INTERSECTION_QUERY:
 
-            reduceToUnion(pl_all, true);
-            result = pl_all.get(0).get(0);
-            pl_all.remove(0);
-            for (Integer idx : pl_all.keySet()) {
-                result = result.intersectWith(pl_all.get(idx).get(0));
+            if (pl_all.size() < converted.size())
+                return null; // some query term does not occur at all
+            reduceToUnion(pl_all);
+            // Intersect in increasing order of document frequency, so that the
+            // intermediate results are as small as possible
+            ArrayList<PostingsList> byFrequency = new ArrayList<PostingsList>();
+            for (ArrayList<PostingsList> arr : pl_all.values()) {
+                byFrequency.add(arr.get(0));
+            }
+            byFrequency.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            result = byFrequency.get(0);
+            for (int i = 1; i < byFrequency.size() && result != null; i++) {
+                result = result.intersectWith(byFrequency.get(i));
             }
+            if (result != null && result.size() == 0)
+                result = null;
             break;
 
         case PHRASE_QUERY:
+        case PROXIMITY_QUERY:
 
-            reduceToUnion(pl_all, false);
+            if (pl_all.size() < n_terms)
+                return null; // some query term does not occur at all
+            reduceToUnion(pl_all);
+            // Join the terms in query order, each step keeping the positions of
+            // the last term matched so far
             result = pl_all.get(0).get(0);
-            if (n_terms == 1) {
-                result = result.intersectWith(result);
-            } else {
-                pl_all.remove(0);
-                for (Integer idx : pl_all.keySet()) {
-                    result = result.phraseWith(pl_all.get(idx).get(0));
-                }
+            for (int idx = 1; idx < n_terms && result.size() > 0; idx++) {
+                PostingsList next = pl_all.get(idx).get(0);
+                if (queryType == QueryType.PHRASE_QUERY)
+                    result = result.phraseWith(next);
+                else
+                    result = result.nearWith(next, windows.get(idx - 1));
             }
             break;
 
         case RANKED_QUERY:
-            reduceToUnion(pl_all, true);
+            if (rankingType == RankingType.TF_IDF) {
+                // Top-k evaluation straight from the postings lists, without
+                // building the set of all matching documents
+                return tfidf.rankTopK(converted, TOP_K);
+            }
+            reduceToUnion(pl_all);
             Set<Integer> result_set = flatMapToSet(pl_all);
             switch (rankingType) {
             case HITS:
@@ -150,13 +208,13 @@ public class Searcher {
                 PostingsList tf = tfidf.rank(result_set, converted);
                 PostingsList pr = pageRank.rank(result_set);
                 for (int i = 0; i < tf.size(); i++) {
-                    double score = (1 - lamda) * tf.get(i).score + lamda * pr.get(i).score;
-                    result.addEntry(new PostingsEntry(tf.get(i).docID, score));
+                    double score = (1 - lamda) * tf.getScore(i) + lamda * pr.getScore(i);
+                    result.addEntry(new PostingsEntry(tf.getDocID(i), score));
                 }
             }
             result.sortByScore();
         }
-        // Index.showDocInfo(result);
+        // index.showDocInfo(result);
         // kgIndex.logInfo();
         return result;
     }
@@ -0,0 +1,154 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One segment of a PersistentHashedIndex: an immutable inverted index over some
+ * of the documents, stored in its own directory and written by a SegmentWriter.
+ *
+ * The data file holds every term followed by its postings list, the dictionary
+ * (a HashDictionary) maps each term to its place in the data file, and the
+ * sorted terms and the term automaton hold the vocabulary of the segment. The
+ * forward index holds the terms of each document.
+ */
+public class Segment {
+
+    /** The files of a segment. */
+    static final String[] FILE_NAMES = { PersistentHashedIndex.DATA_FNAME, PersistentHashedIndex.DICTIONARY_FNAME,
+            PersistentHashedIndex.TERMS_FNAME, PersistentHashedIndex.AUTOMATON_FNAME,
+            PersistentHashedIndex.FORWARD_FNAME };
+
+    /** The name of the segment, which is also the name of its directory. */
+    public final String name;
+
+    final File dir;
+
+    private final HashDictionary dictionary;
+
+    private final MappedFile data;
+
+    private final SortedTermDictionary sortedTerms;
+
+    private final TermAutomaton terms;
+
+    private final ForwardIndex forward;
+
+    /** Number of snapshots of the index that contain the segment. */
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+    /**
+     * Opens the segment stored in the directory.
+     */
+    public Segment(File dir) throws IOException {
+        this.dir = dir;
+        name = dir.getName();
+        File dataFile = new File(dir, PersistentHashedIndex.DATA_FNAME);
+        data = new MappedFile(dataFile);
+        if (data.length() < PostingsCodec.HEADER_SIZE || data.getInt(0) != PostingsCodec.MAGIC)
+            throw new IOException(dataFile + " is not in the binary postings format");
+        if (data.getInt(4) != PostingsCodec.VERSION)
+            throw new IOException(dataFile + " is in postings format version " + data.getInt(4) + ", not "
+                    + PostingsCodec.VERSION);
+        dictionary = new HashDictionary(new File(dir, PersistentHashedIndex.DICTIONARY_FNAME));
+        sortedTerms = new SortedTermDictionary(new File(dir, PersistentHashedIndex.TERMS_FNAME));
+        terms = TermAutomaton.read(new File(dir, PersistentHashedIndex.AUTOMATON_FNAME));
+        forward = new ForwardIndex(new File(dir, PersistentHashedIndex.FORWARD_FNAME));
+    }
+
+    /** Number of terms in the segment. */
+    public int numTerms() {
+        return dictionary.numTerms();
+    }
+
+    /** Size of the segment's data file in bytes. */
+    public long sizeInBytes() {
+        return data.length();
+    }
+
+    /**
+     * Returns the dictionary slot of the term, or -1 if the term is not in the
+     * segment.
+     */
+    private long findSlot(String token) {
+        return dictionary.find(token.getBytes(StandardCharsets.UTF_8), data);
+    }
+
+    /**
+     * Reads and decodes the postings of a term, or returns an empty list if the
+     * term is not in the segment.
+     */
+    public PostingsList readPostings(String token) {
+        long slot = findSlot(token);
+        if (slot < 0)
+            return new PostingsList();
+        return PostingsCodec.decode(data, dictionary.getPointer(slot) + dictionary.getTermLength(slot),
+                dictionary.getSize(slot));
+    }
+
+    /**
+     * Returns the number of documents of the segment containing the term,
+     * including deleted documents.
+     */
+    public int getDocumentFrequency(String token) {
+        long slot = findSlot(token);
+        return slot < 0 ? 0 : dictionary.getDocumentFrequency(slot);
+    }
+
+    public List<String> getTermsWithPrefix(String prefix) {
+        return sortedTerms.termsWithPrefix(prefix);
+    }
+
+    /** Returns all terms of the segment in sorted order. */
+    public Iterator<String> termIterator() {
+        return sortedTerms.iterator();
+    }
+
+    public TermAutomaton getTermAutomaton() {
+        return terms;
+    }
+
+    /**
+     * Returns the terms of the document, or null if the document is not in the
+     * segment.
+     */
+    public TermVector getTermVector(int docID) {
+        return forward.getTermVector(docID, terms);
+    }
+
+    void incRef() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference. When no snapshot contains the segment any more, it
+     * has been merged away and its files are deleted.
+     */
+    void decRef() {
+        if (refs.decrementAndGet() == 0)
+            deleteFiles();
+    }
+
+    /** Deletes the files of the segment. */
+    public void deleteFiles() {
+        deleteFiles(dir);
+    }
+
+    /** Deletes a segment directory, which may be incomplete. */
+    static void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the files of a new segment of a PersistentHashedIndex: the data file
+ * with the postings, the dictionary, the sorted terms, the term automaton and
+ * the forward index.
+ *
+ * The terms must be added in sorted order, each with its encoded postings list.
+ * The files are complete once the writer is closed.
+ */
+public class SegmentWriter implements Closeable {
+
+    /** The directory of the segment. */
+    final File dir;
+
+    private final DataOutputStream data;
+
+    /** Pointer to the first free byte in the data file. */
+    private long free = PostingsCodec.HEADER_SIZE;
+
+    private final HashDictionary.Builder dictionary = new HashDictionary.Builder();
+
+    private final SortedTermDictionary.Writer sortedTerms;
+
+    private final TermAutomaton.Builder automaton = new TermAutomaton.Builder();
+
+    private final ForwardIndex.Writer forward;
+
+    private int numTerms = 0;
+
+    /** Limits the rate at which the data file is written, or null. */
+    private final MergeScheduler.RateLimiter rateLimiter;
+
+    public SegmentWriter(File dir, MergeScheduler.RateLimiter rateLimiter) throws IOException {
+        this.dir = dir;
+        this.rateLimiter = rateLimiter;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        data = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, PersistentHashedIndex.DATA_FNAME)), 1 << 16));
+        data.writeInt(PostingsCodec.MAGIC);
+        data.writeInt(PostingsCodec.VERSION);
+        sortedTerms = new SortedTermDictionary.Writer(new File(dir, PersistentHashedIndex.TERMS_FNAME));
+        forward = new ForwardIndex.Writer(dir);
+    }
+
+    /**
+     * Appends the term and its encoded postings to the data file and adds the term
+     * to the dictionary, the terms file, the term automaton and the forward index.
+     */
+    public void add(String term, byte[] postings) throws IOException {
+        byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+        long ptr = free;
+        data.write(termBytes);
+        data.write(postings);
+        free += termBytes.length + postings.length;
+        dictionary.add(termBytes, ptr, postings.length, PostingsCodec.documentFrequency(postings));
+        sortedTerms.add(term);
+        automaton.add(term);
+        forward.add(numTerms, postings);
+        numTerms++;
+        if (rateLimiter != null)
+            rateLimiter.pause(termBytes.length + postings.length);
+    }
+
+    public int numTerms() {
+        return numTerms;
+    }
+
+    /**
+     * Writes the dictionary, the terms file, the automaton and the forward index,
+     * and syncs all files of the segment to disk.
+     */
+    public void close() throws IOException {
+        data.close();
+        sortedTerms.close();
+        dictionary.write(new File(dir, PersistentHashedIndex.DICTIONARY_FNAME));
+        automaton.build().write(new File(dir, PersistentHashedIndex.AUTOMATON_FNAME));
+        forward.write(new File(dir, PersistentHashedIndex.FORWARD_FNAME), automaton.getIDs());
+        for (String name : Segment.FILE_NAMES) {
+            Manifest.fsync(new File(dir, name));
+        }
+        Manifest.fsync(dir);
+    }
+}
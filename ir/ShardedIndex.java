@@ -0,0 +1,357 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An inverted index in memory that several threads may insert documents into
+ * at the same time, and that may be searched while documents are inserted.
+ *
+ * The terms are spread over NUM_SHARDS shards by their hash code. Each shard
+ * is a hashtable from terms to PostingsLists with a read-write lock of its
+ * own, so threads inserting or reading terms of different shards do not wait
+ * for each other. A document is inserted with one write lock per shard that
+ * holds any of its terms.
+ *
+ * A document only becomes visible to searches once all its terms are
+ * inserted. Every document made visible increments the generation of the
+ * index, and the generation at which each document became visible is kept. A
+ * query sees the documents that were visible at the generation pinned by
+ * beginQuery, so all the postings lists it reads agree with each other, even
+ * if documents are inserted meanwhile.
+ *
+ * getPostings returns a view of the list, which shares its arrays and does not
+ * change when documents are inserted later (see PostingsList.view), so it is
+ * taken in constant time under the read lock. The view may hold documents
+ * that are not visible at the pinned generation. Those can only be documents
+ * still being inserted, or documents made visible after the generation, and
+ * only they are looked up in the view. The list is copied without them only
+ * if the view holds any of them.
+ *
+ * Every term gets a term ID when it is first inserted, and the term IDs and
+ * frequencies of each document inserted with insertDocument are kept as its
+ * term vector, for relevance feedback.
+ */
+public class ShardedIndex implements Index {
+
+    /** Number of shards, rounded down to a power of two. */
+    public static final int NUM_SHARDS = 64;
+
+    /** A term with its term ID and postings list. */
+    private static class Term {
+        final int id;
+        final PostingsList list = new PostingsList();
+
+        Term(int id) {
+            this.id = id;
+        }
+    }
+
+    /** The terms whose hash codes fall in one shard. */
+    private static class Shard {
+        final HashMap<String, Term> terms = new HashMap<String, Term>();
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+    private final Shard[] shards;
+
+    /** The documents of the index. */
+    private final DocTable docTable = new DocTable();
+
+    /**
+     * The terms by term ID, in the order they were first inserted. Replaced by a
+     * larger copy when full.
+     */
+    private volatile String[] vocabulary = new String[1024];
+
+    /** Number of terms in the vocabulary. Guarded by vocabularyLock. */
+    private int vocabularySize = 0;
+
+    private final Object vocabularyLock = new Object();
+
+    /**
+     * The term vector of each visible document inserted with insertDocument.
+     * Replaced by a larger copy when a docID does not fit.
+     */
+    private volatile TermVector[] vectors = new TermVector[16];
+
+    /** Held while a document is made visible. */
+    private final Object publishLock = new Object();
+
+    /**
+     * The generation at which each document became visible, or 0 if it is not
+     * visible (yet). Replaced by a larger copy when a docID does not fit.
+     */
+    private volatile int[] visibleAt = new int[16];
+
+    /**
+     * The document made visible at each generation: generation g made document
+     * <code>published[g - 1]</code> visible. Replaced by a larger copy when full.
+     */
+    private volatile int[] published = new int[16];
+
+    /** Number of documents made visible so far. */
+    private volatile int generation = 0;
+
+    /** The documents being inserted, which are not visible yet. */
+    private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+
+    /** The generation pinned by the query running in each thread. */
+    private final ThreadLocal<Integer> pinned = new ThreadLocal<Integer>();
+
+    public ShardedIndex() {
+        int n = Integer.highestOneBit(Math.max(1, NUM_SHARDS));
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    private int shardOf(String term) {
+        int h = term.hashCode();
+        return (h ^ (h >>> 16)) & (shards.length - 1);
+    }
+
+    /** Returns the term of the shard, adding it with a new term ID if needed. */
+    private Term termOf(Shard shard, String token) {
+        Term term = shard.terms.get(token);
+        if (term == null) {
+            synchronized (vocabularyLock) {
+                String[] v = vocabulary;
+                if (vocabularySize == v.length)
+                    v = Arrays.copyOf(v, 2 * v.length);
+                v[vocabularySize] = token;
+                term = new Term(vocabularySize++);
+                vocabulary = v;
+            }
+            shard.terms.put(token, term);
+        }
+        return term;
+    }
+
+    /**
+     * Inserts a token. The document becomes visible with its first token, and
+     * has no term vector; use insertDocument to make a document visible only
+     * once it is complete.
+     */
+    public void insert(String token, int docID, int offset) {
+        inFlight.add(docID);
+        Shard shard = shards[shardOf(token)];
+        shard.lock.writeLock().lock();
+        try {
+            termOf(shard, token).list.addDocument(docID, new int[] { offset }, 1);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+        publish(docID, null);
+    }
+
+    /**
+     * Inserts the terms of a document, locking each shard once, and then makes
+     * the document visible. Documents may be inserted in any order.
+     */
+    public void insertDocument(int docID, DocumentTerms terms) {
+        inFlight.add(docID);
+        // Sort the terms by shard
+        int n = terms.size();
+        int[] start = new int[shards.length + 1];
+        int[] shardOf = new int[n];
+        for (int i = 0; i < n; i++) {
+            shardOf[i] = shardOf(terms.getTerm(i));
+            start[shardOf[i] + 1]++;
+        }
+        for (int s = 0; s < shards.length; s++) {
+            start[s + 1] += start[s];
+        }
+        int[] next = Arrays.copyOf(start, shards.length);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[next[shardOf[i]]++] = i;
+        }
+        // The term vector, as term ID and tf pairs
+        long[] vector = new long[n];
+        for (int s = 0; s < shards.length; s++) {
+            if (start[s] == start[s + 1])
+                continue;
+            Shard shard = shards[s];
+            shard.lock.writeLock().lock();
+            try {
+                for (int k = start[s]; k < start[s + 1]; k++) {
+                    int i = order[k];
+                    String token = terms.getTerm(i);
+                    Term term = termOf(shard, token);
+                    terms.setNew(i, term.list.size() == 0);
+                    term.list.addDocument(docID, terms.getPositions(i), terms.getTf(i));
+                    vector[k] = (long) term.id << 32 | terms.getTf(i);
+                }
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+        Arrays.sort(vector);
+        int[] termIDs = new int[n];
+        int[] tfs = new int[n];
+        for (int k = 0; k < n; k++) {
+            termIDs[k] = (int) (vector[k] >>> 32);
+            tfs[k] = (int) vector[k];
+        }
+        publish(docID, n == 0 ? null : new TermVector(termIDs, tfs, id -> vocabulary[id]));
+    }
+
+    /**
+     * Makes the document visible to queries that start from now on, with its
+     * term vector, which may be null.
+     */
+    private void publish(int docID, TermVector vector) {
+        synchronized (publishLock) {
+            int[] v = visibleAt;
+            if (docID >= v.length) {
+                v = Arrays.copyOf(v, Math.max(2 * v.length, docID + 1));
+                visibleAt = v;
+            }
+            if (vector != null) {
+                TermVector[] tv = vectors;
+                if (docID >= tv.length) {
+                    tv = Arrays.copyOf(tv, Math.max(2 * tv.length, docID + 1));
+                    vectors = tv;
+                }
+                tv[docID] = vector;
+            }
+            if (v[docID] == 0) {
+                int g = generation + 1;
+                v[docID] = g;
+                int[] p = published;
+                if (g > p.length) {
+                    p = Arrays.copyOf(p, 2 * p.length);
+                    published = p;
+                }
+                p[g - 1] = docID;
+                // Written last, so that a reader of the generation sees the entries
+                generation = g;
+            }
+        }
+        inFlight.remove(docID);
+    }
+
+    /** Returns the generation of the documents visible to the caller. */
+    private int visibleGeneration() {
+        Integer pin = pinned.get();
+        return pin != null ? pin : generation;
+    }
+
+    /** Returns true if the document was visible at generation g. */
+    private boolean isVisible(int docID, int g) {
+        int[] v = visibleAt;
+        return docID < v.length && v[docID] != 0 && v[docID] <= g;
+    }
+
+    /** Returns a view of the list of the term, or null if there is none. */
+    private PostingsList view(String token) {
+        Shard shard = shards[shardOf(token)];
+        shard.lock.readLock().lock();
+        try {
+            Term term = shard.terms.get(token);
+            return term == null ? null : term.list.view();
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the documents of the view that are not visible at generation g.
+     * Must be called after the view is taken: a document of the view is then
+     * either in flight when inFlight is read, or was made visible before the
+     * generation is read after it.
+     */
+    private BitSet hiddenDocs(PostingsList view, int g) {
+        BitSet hidden = new BitSet();
+        for (int docID : inFlight) {
+            // It may have been made visible just before it is removed
+            if (!isVisible(docID, g) && view.indexOfDoc(docID) >= 0)
+                hidden.set(docID);
+        }
+        int current = generation;
+        int[] p = published;
+        if (current - g > view.size()) {
+            // Fewer entries in the view than documents made visible since g
+            for (int i = 0; i < view.size(); i++) {
+                if (!isVisible(view.getDocID(i), g))
+                    hidden.set(view.getDocID(i));
+            }
+        } else {
+            for (int gen = g + 1; gen <= current; gen++) {
+                if (view.indexOfDoc(p[gen - 1]) >= 0)
+                    hidden.set(p[gen - 1]);
+            }
+        }
+        return hidden;
+    }
+
+    /**
+     * Returns the postings of the documents visible to the caller, or null if
+     * the term is in none of them. The list must not be changed.
+     */
+    public PostingsList getPostings(String token) {
+        int g = visibleGeneration();
+        PostingsList view = view(token);
+        if (view == null)
+            return null;
+        BitSet hidden = hiddenDocs(view, g);
+        PostingsList result = hidden.isEmpty() ? view : view.withoutDocs(hidden);
+        return result.size() == 0 ? null : result;
+    }
+
+    /** Counts the visible documents of the term without copying its list. */
+    public int getDocumentFrequency(String token) {
+        int g = visibleGeneration();
+        PostingsList view = view(token);
+        if (view == null)
+            return 0;
+        return view.size() - hiddenDocs(view, g).cardinality();
+    }
+
+    /**
+     * Returns the term vector of the document, or null if it is not visible to
+     * the caller or was not inserted with insertDocument.
+     */
+    public TermVector getTermVector(int docID) {
+        if (docID < 0 || !isVisible(docID, visibleGeneration()))
+            return null;
+        TermVector[] tv = vectors;
+        return docID < tv.length ? tv[docID] : null;
+    }
+
+    /** Number of documents visible to the caller. */
+    public int getNumDocs() {
+        return visibleGeneration();
+    }
+
+    public DocTable getDocTable() {
+        return docTable;
+    }
+
+    public boolean isConcurrent() {
+        return true;
+    }
+
+    /**
+     * Pins the current generation for the query about to run in this thread.
+     */
+    public void beginQuery() {
+        if (pinned.get() == null)
+            pinned.set(generation);
+    }
+
+    public void endQuery() {
+        pinned.remove();
+    }
+
+    public void cleanup() {
+    }
+}
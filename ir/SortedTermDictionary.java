@@ -0,0 +1,225 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * All terms of the index in sorted order, stored front-coded in blocks, for
+ * looking up the terms that start with a prefix.
+ *
+ * The terms are split into blocks of <code>BLOCK_SIZE</code> consecutive terms.
+ * The first term of a block is stored in full (its length and UTF-8 bytes); every
+ * other term is stored as the length of the prefix it shares with the previous
+ * term, the length of the rest, and the bytes of the rest. After the blocks
+ * comes the block index: the position of every block in the file.
+ *
+ * When the file is opened, the first term of every block is kept in memory. A
+ * lookup binary searches these terms for the block where the prefix would be,
+ * and then decodes terms from there until they no longer start with the prefix.
+ */
+public class SortedTermDictionary {
+
+    /** Written at the start of the terms file. */
+    public static final int MAGIC = 0x49525354; // "IRST"
+
+    /** Version of the terms file format. */
+    public static final int VERSION = 1;
+
+    /** Header: magic, version, number of terms, block size and position of the block index. */
+    static final int HEADER_SIZE = 24;
+
+    /** Number of terms per front-coded block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** The mapped terms file. */
+    private final MappedFile file;
+
+    private final int numTerms;
+
+    private final int blockSize;
+
+    /** The first term of every block. */
+    private final String[] firstTerms;
+
+    /** The position of every block in the file. */
+    private final long[] blockStarts;
+
+    /**
+     * Opens a terms file written by a Writer.
+     */
+    public SortedTermDictionary(File termsFile) throws IOException {
+        file = new MappedFile(termsFile);
+        if (file.length() < HEADER_SIZE || file.getInt(0) != MAGIC)
+            throw new IOException(termsFile + " is not a terms file");
+        int version = file.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported terms file version " + version);
+        numTerms = file.getInt(8);
+        blockSize = file.getInt(12);
+        long indexStart = file.getLong(16);
+        int numBlocks = (numTerms + blockSize - 1) / blockSize;
+        firstTerms = new String[numBlocks];
+        blockStarts = new long[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            blockStarts[b] = file.getLong(indexStart + 8L * b);
+            long[] pos = { blockStarts[b] };
+            byte[] term = new byte[file.readVByte(pos)];
+            for (int i = 0; i < term.length; i++)
+                term[i] = file.get(pos[0]++);
+            firstTerms[b] = new String(term, StandardCharsets.UTF_8);
+        }
+    }
+
+    public int numTerms() {
+        return numTerms;
+    }
+
+    /**
+     * Returns the terms starting with the prefix, in sorted order.
+     */
+    public List<String> termsWithPrefix(String prefix) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (numTerms == 0)
+            return result;
+        // The last block starting before the prefix; terms equal to the prefix may
+        // start the next block, so a block starting with the prefix is not enough
+        int lo = 0;
+        int hi = firstTerms.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firstTerms[mid].compareTo(prefix) < 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        long[] pos = { blockStarts[lo] };
+        byte[] term = new byte[64];
+        int length = 0;
+        for (int t = lo * blockSize; t < numTerms; t++) {
+            int shared = t % blockSize == 0 ? 0 : file.readVByte(pos);
+            int suffix = file.readVByte(pos);
+            length = shared + suffix;
+            if (length > term.length)
+                term = Arrays.copyOf(term, 2 * length);
+            for (int i = shared; i < length; i++)
+                term[i] = file.get(pos[0]++);
+            String s = new String(term, 0, length, StandardCharsets.UTF_8);
+            if (s.startsWith(prefix))
+                result.add(s);
+            else if (s.compareTo(prefix) > 0)
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Returns all terms in sorted order.
+     */
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            long[] pos = { HEADER_SIZE };
+            byte[] term = new byte[64];
+            int next = 0;
+
+            public boolean hasNext() {
+                return next < numTerms;
+            }
+
+            public String next() {
+                if (next == numTerms)
+                    throw new NoSuchElementException();
+                int shared = next % blockSize == 0 ? 0 : file.readVByte(pos);
+                int length = shared + file.readVByte(pos);
+                if (length > term.length)
+                    term = Arrays.copyOf(term, 2 * length);
+                for (int i = shared; i < length; i++)
+                    term[i] = file.get(pos[0]++);
+                next++;
+                return new String(term, 0, length, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * Writes a terms file. The terms must be added in increasing order.
+     */
+    public static class Writer implements Closeable {
+
+        private final File termsFile;
+
+        private final DataOutputStream out;
+
+        /** Number of bytes written so far. */
+        private long written = HEADER_SIZE;
+
+        private int numTerms = 0;
+
+        private long[] blockStarts = new long[16];
+
+        private byte[] previous = new byte[0];
+
+        public Writer(File termsFile) throws IOException {
+            this.termsFile = termsFile;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(termsFile), 1 << 16));
+            // The header is completed by close()
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        public void add(String term) throws IOException {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            if (numTerms % BLOCK_SIZE == 0) {
+                int block = numTerms / BLOCK_SIZE;
+                if (block == blockStarts.length)
+                    blockStarts = Arrays.copyOf(blockStarts, 2 * block);
+                blockStarts[block] = written;
+                writeVByte(bytes.length);
+                out.write(bytes);
+                written += bytes.length;
+            } else {
+                int shared = 0;
+                int max = Math.min(bytes.length, previous.length);
+                while (shared < max && bytes[shared] == previous[shared])
+                    shared++;
+                writeVByte(shared);
+                writeVByte(bytes.length - shared);
+                out.write(bytes, shared, bytes.length - shared);
+                written += bytes.length - shared;
+            }
+            previous = bytes;
+            numTerms++;
+        }
+
+        private void writeVByte(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+                written++;
+            }
+            out.write(value);
+            written++;
+        }
+
+        /** Writes the block index and the header, and closes the file. */
+        public void close() throws IOException {
+            long indexStart = written;
+            int numBlocks = (numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int b = 0; b < numBlocks; b++)
+                out.writeLong(blockStarts[b]);
+            out.close();
+            try (RandomAccessFile raf = new RandomAccessFile(termsFile, "rw")) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(numTerms);
+                raf.writeInt(BLOCK_SIZE);
+                raf.writeLong(indexStart);
+            }
+        }
+    }
+}
@@ -160,7 +160,7 @@ public class SpellChecker {
                 .collect(Collectors.toMap(e -> e.getKey(), e -> Math.toIntExact(e.getValue())));
 
         Map<Integer, Double> jc_score = jc_count.entrySet().stream().collect(
-                Collectors.toMap(e -> e.getKey(), e -> jaccard(szQ, kgIndex.id2kgnum.get(e.getKey()), e.getValue())));
+                Collectors.toMap(e -> e.getKey(), e -> jaccard(szQ, kgIndex.getNumKGrams(e.getKey()), e.getValue())));
 
         Map<String, Double> jc_passed = jc_score.entrySet().stream().filter(e -> e.getValue() > JACCARD_THRESHOLD)
                 .collect(Collectors.toMap(e -> kgIndex.getTermByID(e.getKey()), e -> e.getValue()));
@@ -190,8 +190,8 @@ public class SpellChecker {
      */
     public String[] check(Query query, int limit) {
 
-        Map<String, Integer> hits = query.queryterm.stream().collect(Collectors.toMap(qt -> qt.term,
-                qt -> index.getPostings(qt.term) == null ? 0 : index.getPostings(qt.term).size()));
+        Map<String, Integer> hits = query.queryterm.stream()
+                .collect(Collectors.toMap(qt -> qt.term, qt -> index.getDocumentFrequency(qt.term)));
 
         Map<String, List<KGramStat>> qCorrections = hits.entrySet().stream().map(e -> correct(e))
                 .collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
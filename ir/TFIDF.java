@@ -14,46 +14,206 @@ public class TFIDF {
     }
 
     int tf(String term, int id) {
-        if (index.getPostings(term) == null) {
+        PostingsList pl = index.getPostings(term);
+        if (pl == null) {
             return 0;
         }
-        return index.getPostings(term).numTermOccursIn(id);
+        return pl.numTermOccursIn(id);
     }
 
-    double idf(String term) {
-        if (index.getPostings(term) == null) {
+    /** The idf of a term that occurs in <code>df</code> documents. */
+    double idf(int df) {
+        if (df == 0) {
             return 0.0;
         }
-        int N = index.docLengths.size();
-        int df = index.getPostings(term).getDocIdSet().size();
+        int N = numDocs();
         return Math.log(N / df);
     }
 
+    /** Number of documents the idf is computed over. */
+    int numDocs() {
+        return index.getNumDocs();
+    }
+
+    /**
+     * The number of documents containing the term, whose postings list in the
+     * index is <code>pl</code>. Overridden when the index holds only a part of
+     * the documents (see PartitionedSearcher).
+     */
+    int documentFrequency(String term, PostingsList pl) {
+        return pl.size();
+    }
+
+    /** The idf of a term, from the document frequency stored in the index. */
+    double idf(String term) {
+        return idf(index.getDocumentFrequency(term));
+    }
+
     double idf(String term, int docId) {
-        return idf(term) / Index.docLengths.get(docId);
+        return idf(term) / index.getDocLength(docId);
     }
 
     double tf_idf(String term, int docId) {
         return tf(term, docId) * idf(term, docId);
     }
 
+    /**
+     * The tf-idf weight of a term in a document, without the idf factor, as it is
+     * summed up by <code>rank</code>: tf / len^2 (tf-idf is divided by the length
+     * once per term, and the sum once more).
+     */
+    static double termWeight(int tf, int docId, Index index) {
+        int len = index.getDocLength(docId);
+        // A document whose length is unknown is given the smallest possible
+        // length, so that the result is still an upper bound
+        double docLen = len <= 0 ? 1.0 : len;
+        return tf / (docLen * docLen);
+    }
+
+    /**
+     * Returns the largest <code>termWeight</code> of the term over all documents
+     * in its postings list. The value is computed once per list and stored in the
+     * index with the postings.
+     */
+    static double maxTermWeight(PostingsList pl, Index index) {
+        if (Double.isNaN(pl.maxTermWeight)) {
+            double max = 0.0;
+            for (int i = 0; i < pl.size(); i++) {
+                max = Math.max(max, termWeight(pl.getTf(i), pl.getDocID(i), index));
+            }
+            pl.maxTermWeight = max;
+        }
+        return pl.maxTermWeight;
+    }
+
+    /**
+     * A position in the postings list of one query term, used by
+     * <code>rankTopK</code>.
+     */
+    static class Cursor {
+        final PostingsList pl;
+        final double idf;
+        final double upperBound;
+        int i = 0;
+
+        Cursor(PostingsList pl, double idf, double upperBound) {
+            this.pl = pl;
+            this.idf = idf;
+            this.upperBound = upperBound;
+        }
+
+        int docID() {
+            return i < pl.size() ? pl.getDocID(i) : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the <code>k</code> documents with the highest tf-idf score, with the
+     * same scores as <code>rank</code>, sorted by decreasing score.
+     *
+     * Documents are evaluated one at a time with WAND pruning. The cursors are
+     * kept sorted by their current docID, and the pivot is the first cursor at
+     * which the sum of the upper bounds of the cursors before it exceeds the
+     * smallest score in the top-k heap. No document before the pivot can make it
+     * into the top k, so those cursors skip directly to the pivot document.
+     */
+    public PostingsList rankTopK(HashMap<Integer, ArrayList<String>> converted, int k) {
+        ArrayList<Cursor> list = new ArrayList<Cursor>();
+        for (Integer idx : converted.keySet()) {
+            for (String opt : converted.get(idx)) {
+                PostingsList pl = index.getPostings(opt);
+                if (pl != null && pl.size() > 0) {
+                    double idf = idf(documentFrequency(opt, pl));
+                    list.add(new Cursor(pl, idf, idf * maxTermWeight(pl, index)));
+                }
+            }
+        }
+        Cursor[] cursors = list.toArray(new Cursor[list.size()]);
+
+        // Min-heap of the best documents so far: the worst score (and, on equal
+        // scores, the largest docID) on top
+        PriorityQueue<PostingsEntry> heap = new PriorityQueue<PostingsEntry>(k + 1, (a, b) -> {
+            int cmp = Double.compare(a.score, b.score);
+            return cmp != 0 ? cmp : Integer.compare(b.docID, a.docID);
+        });
+        double threshold = -1.0;
+        while (true) {
+            Arrays.sort(cursors, (a, b) -> Integer.compare(a.docID(), b.docID()));
+            double sum = 0.0;
+            int pivot = -1;
+            for (int c = 0; c < cursors.length && cursors[c].docID() != Integer.MAX_VALUE; c++) {
+                sum += cursors[c].upperBound;
+                if (sum > threshold) {
+                    pivot = c;
+                    break;
+                }
+            }
+            if (pivot < 0)
+                break;
+            int pivotDoc = cursors[pivot].docID();
+            if (cursors[0].docID() == pivotDoc) {
+                double score = 0.0;
+                for (Cursor c : cursors) {
+                    if (c.docID() != pivotDoc)
+                        break;
+                    score += c.idf * termWeight(c.pl.getTf(c.i), pivotDoc, index);
+                    c.i++;
+                }
+                if (heap.size() < k || score > threshold) {
+                    heap.add(new PostingsEntry(pivotDoc, score));
+                    if (heap.size() > k)
+                        heap.poll();
+                    if (heap.size() == k)
+                        threshold = heap.peek().score;
+                }
+            } else {
+                for (int c = 0; c < pivot; c++) {
+                    cursors[c].i = cursors[c].pl.advanceTo(cursors[c].i, pivotDoc);
+                }
+            }
+        }
+
+        PostingsEntry[] top = heap.toArray(new PostingsEntry[heap.size()]);
+        Arrays.sort(top, (a, b) -> {
+            int cmp = Double.compare(b.score, a.score);
+            return cmp != 0 ? cmp : Integer.compare(a.docID, b.docID);
+        });
+        PostingsList result = new PostingsList();
+        for (PostingsEntry e : top) {
+            result.addEntry(e);
+        }
+        return result;
+    }
+
+    /**
+     * Scores the documents in <code>result_set</code>. The postings list of every
+     * query term is read once, and the tf of a document and the df of the term
+     * are taken from it.
+     */
     public PostingsList rank(Set<Integer> result_set, HashMap<Integer, ArrayList<String>> converted) {
-        int N = index.docLengths.size();
         PostingsList result = new PostingsList();
         Map<Integer, Double> scores = new HashMap<Integer, Double>();
-        for (int id : result_set) {
-            scores.put(id, 0d);
-            for (Integer idx : converted.keySet()) {
-                for (String opt : converted.get(idx)) {
-                    // double weight = query.getTermWeightAt(i);
-                    double weight = 1.0;
-                    double tf_idf = tf_idf(opt, id) * weight;
-                    scores.put(id, tf_idf + scores.get(id));
+        for (Integer idx : converted.keySet()) {
+            for (String opt : converted.get(idx)) {
+                PostingsList pl = index.getPostings(opt);
+                if (pl == null) {
+                    continue;
+                }
+                // double weight = query.getTermWeightAt(i);
+                double weight = 1.0;
+                double idf = idf(documentFrequency(opt, pl));
+                for (int i = 0; i < pl.size(); i++) {
+                    int id = pl.getDocID(i);
+                    if (result_set.contains(id)) {
+                        double tf_idf = pl.getTf(i) * idf / index.getDocLength(id) * weight;
+                        scores.merge(id, tf_idf, Double::sum);
+                    }
                 }
             }
-            int docLen = Index.docLengths.get(id);
-            scores.put(id, scores.get(id) / docLen);
-            result.addEntry(new PostingsEntry(id, scores.get(id)));
+        }
+        for (int id : result_set) {
+            int docLen = index.getDocLength(id);
+            result.addEntry(new PostingsEntry(id, scores.getOrDefault(id, 0d) / docLen));
         }
         return result;
     }
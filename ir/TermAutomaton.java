@@ -0,0 +1,405 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The vocabulary of an index as a minimal acyclic finite-state transducer over
+ * the UTF-8 bytes of the terms.
+ *
+ * The transducer maps every term to its term ID, which is the rank of the term
+ * when the terms are sorted by their bytes, and back. Each arc carries an output,
+ * the number of terms that are smaller than all terms reached through the arc
+ * from its state; the ID of a term is the sum of the outputs along its path.
+ * The automaton holds no other value per term: the indexes keep what they need
+ * per term in arrays indexed by term ID, or in their dictionaries.
+ *
+ * The automaton is minimal: terms share both prefixes and suffixes, so the
+ * vocabulary takes a few bytes per term instead of a String and a map entry. It
+ * is built once from all terms by a Builder (Daciuk et al.'s algorithm for
+ * sorted input) and can be written to and read from file. It is never modified
+ * afterwards, so it can be shared between threads.
+ */
+public class TermAutomaton {
+
+    /** Written at the start of an automaton file. */
+    public static final int MAGIC = 0x49524653; // "IRFS"
+
+    /**
+     * Version of the automaton file format. Version 1 files may hold a value per
+     * term after the arcs, which is skipped when they are read.
+     */
+    public static final int VERSION = 2;
+
+    private final int numTerms;
+
+    private final int root;
+
+    /** The arcs of state s are <code>arcStart[s] .. arcStart[s + 1]</code>, sorted by label. */
+    private final int[] arcStart;
+
+    /** Whether a term ends in the state. */
+    private final BitSet finalStates;
+
+    private final byte[] arcLabels;
+
+    private final int[] arcTargets;
+
+    private final int[] arcOutputs;
+
+    private TermAutomaton(int numTerms, int root, int[] arcStart, BitSet finalStates, byte[] arcLabels,
+            int[] arcTargets, int[] arcOutputs) {
+        this.numTerms = numTerms;
+        this.root = root;
+        this.arcStart = arcStart;
+        this.finalStates = finalStates;
+        this.arcLabels = arcLabels;
+        this.arcTargets = arcTargets;
+        this.arcOutputs = arcOutputs;
+    }
+
+    /** Number of terms. */
+    public int size() {
+        return numTerms;
+    }
+
+    public int numStates() {
+        return arcStart.length - 1;
+    }
+
+    public int numArcs() {
+        return arcLabels.length;
+    }
+
+    /** Estimated number of heap bytes used by the automaton. */
+    public long memoryBytes() {
+        return 4L * arcStart.length + finalStates.size() / 8 + 9L * arcLabels.length;
+    }
+
+    /**
+     * Returns the arc of the state with the label, or -1 if there is none.
+     */
+    private int findArc(int state, int label) {
+        int lo = arcStart[state];
+        int hi = arcStart[state + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int l = arcLabels[mid] & 0xFF;
+            if (l < label)
+                lo = mid + 1;
+            else if (l > label)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ID of the term, or -1 if the term is not in the vocabulary.
+     */
+    public int getID(String term) {
+        if (numTerms == 0)
+            return -1;
+        int state = root;
+        int id = 0;
+        for (byte b : term.getBytes(StandardCharsets.UTF_8)) {
+            int arc = findArc(state, b & 0xFF);
+            if (arc < 0)
+                return -1;
+            id += arcOutputs[arc];
+            state = arcTargets[arc];
+        }
+        return finalStates.get(state) ? id : -1;
+    }
+
+    public boolean contains(String term) {
+        return getID(term) >= 0;
+    }
+
+    /**
+     * Returns the term with the given ID.
+     */
+    public String getTerm(int id) {
+        if (id < 0 || id >= numTerms)
+            throw new IndexOutOfBoundsException("No term with ID " + id);
+        byte[] term = new byte[16];
+        int length = 0;
+        int state = root;
+        while (!(id == 0 && finalStates.get(state))) {
+            // The last arc whose output does not exceed the remaining ID
+            int lo = arcStart[state];
+            int hi = arcStart[state + 1] - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (arcOutputs[mid] <= id)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            if (length == term.length)
+                term = Arrays.copyOf(term, 2 * length);
+            term[length++] = arcLabels[lo];
+            id -= arcOutputs[lo];
+            state = arcTargets[lo];
+        }
+        return new String(term, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numTerms);
+            out.writeInt(numStates());
+            out.writeInt(numArcs());
+            out.writeInt(root);
+            for (int s = 0; s <= numStates(); s++)
+                out.writeInt(arcStart[s]);
+            for (int s = 0; s < numStates(); s += 8) {
+                int bits = 0;
+                for (int i = 0; i < 8 && s + i < numStates(); i++) {
+                    if (finalStates.get(s + i))
+                        bits |= 1 << i;
+                }
+                out.write(bits);
+            }
+            out.write(arcLabels);
+            for (int a = 0; a < numArcs(); a++) {
+                out.writeInt(arcTargets[a]);
+                out.writeInt(arcOutputs[a]);
+            }
+        }
+    }
+
+    public static TermAutomaton read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not an automaton file");
+            int version = in.readInt();
+            if (version != VERSION && version != 1)
+                throw new IOException("Unsupported automaton file version " + version);
+            int numTerms = in.readInt();
+            int numStates = in.readInt();
+            int numArcs = in.readInt();
+            int root = in.readInt();
+            boolean hasValues = version == 1 && in.readBoolean();
+            int[] arcStart = new int[numStates + 1];
+            for (int s = 0; s <= numStates; s++)
+                arcStart[s] = in.readInt();
+            BitSet finalStates = new BitSet(numStates);
+            for (int s = 0; s < numStates; s += 8) {
+                int bits = in.readUnsignedByte();
+                for (int i = 0; i < 8; i++) {
+                    if ((bits & (1 << i)) != 0)
+                        finalStates.set(s + i);
+                }
+            }
+            byte[] arcLabels = new byte[numArcs];
+            in.readFully(arcLabels);
+            int[] arcTargets = new int[numArcs];
+            int[] arcOutputs = new int[numArcs];
+            for (int a = 0; a < numArcs; a++) {
+                arcTargets[a] = in.readInt();
+                arcOutputs[a] = in.readInt();
+            }
+            if (hasValues) {
+                for (int i = 0; i < numTerms; i++)
+                    in.readLong();
+            }
+            return new TermAutomaton(numTerms, root, arcStart, finalStates, arcLabels, arcTargets, arcOutputs);
+        }
+    }
+
+    /**
+     * Collects terms and builds the automaton. Terms may be added in any order,
+     * but at most once.
+     */
+    public static class Builder {
+
+        private final ArrayList<byte[]> terms = new ArrayList<byte[]>();
+
+        /** After build(), the term ID of each term in the order they were added. */
+        private int[] ids = null;
+
+        public void add(String term) {
+            terms.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /** A state on the path of the last added term, which can still change. */
+        private static class Node {
+            boolean isFinal = false;
+            int numArcs = 0;
+            byte[] labels = new byte[4];
+            /** Frozen target states; the target of the last arc is the next node on the path. */
+            int[] targets = new int[4];
+
+            void addArc(byte label) {
+                if (numArcs == labels.length) {
+                    labels = Arrays.copyOf(labels, 2 * numArcs);
+                    targets = Arrays.copyOf(targets, 2 * numArcs);
+                }
+                labels[numArcs++] = label;
+            }
+        }
+
+        /** A frozen state, as the key of the register of equivalent states. */
+        private static class Signature {
+            final boolean isFinal;
+            final byte[] labels;
+            final int[] targets;
+            final int hash;
+
+            Signature(Node node) {
+                isFinal = node.isFinal;
+                labels = Arrays.copyOf(node.labels, node.numArcs);
+                targets = Arrays.copyOf(node.targets, node.numArcs);
+                hash = 31 * (31 * Arrays.hashCode(labels) + Arrays.hashCode(targets)) + (isFinal ? 1 : 0);
+            }
+
+            public int hashCode() {
+                return hash;
+            }
+
+            public boolean equals(Object o) {
+                Signature other = (Signature) o;
+                return isFinal == other.isFinal && Arrays.equals(labels, other.labels)
+                        && Arrays.equals(targets, other.targets);
+            }
+        }
+
+        /** The frozen states, by signature. */
+        private HashMap<Signature, Integer> register;
+
+        private int numStates;
+        private int[] arcStart;
+        private int[] numTermsFrom;
+        private BitSet finalStates;
+        private int numArcs;
+        private byte[] arcLabels;
+        private int[] arcTargets;
+        private int[] arcOutputs;
+
+        /**
+         * Returns the frozen state equivalent to the node, freezing it first if
+         * there is none yet. All targets of the node must be frozen.
+         */
+        private int freeze(Node node) {
+            Signature signature = new Signature(node);
+            Integer existing = register.get(signature);
+            if (existing != null)
+                return existing;
+            int state = numStates++;
+            if (state + 1 >= arcStart.length) {
+                arcStart = Arrays.copyOf(arcStart, 2 * arcStart.length);
+                numTermsFrom = Arrays.copyOf(numTermsFrom, 2 * numTermsFrom.length);
+            }
+            if (numArcs + node.numArcs > arcLabels.length) {
+                int capacity = Math.max(2 * arcLabels.length, numArcs + node.numArcs);
+                arcLabels = Arrays.copyOf(arcLabels, capacity);
+                arcTargets = Arrays.copyOf(arcTargets, capacity);
+                arcOutputs = Arrays.copyOf(arcOutputs, capacity);
+            }
+            arcStart[state] = numArcs;
+            int count = node.isFinal ? 1 : 0;
+            if (node.isFinal)
+                finalStates.set(state);
+            for (int i = 0; i < node.numArcs; i++) {
+                arcLabels[numArcs] = node.labels[i];
+                arcTargets[numArcs] = node.targets[i];
+                arcOutputs[numArcs] = count;
+                count += numTermsFrom[node.targets[i]];
+                numArcs++;
+            }
+            numTermsFrom[state] = count;
+            arcStart[state + 1] = numArcs;
+            register.put(signature, state);
+            return state;
+        }
+
+        public TermAutomaton build() {
+            Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> compareBytes(terms.get(a), terms.get(b)));
+
+            register = new HashMap<Signature, Integer>();
+            numStates = 0;
+            arcStart = new int[16];
+            numTermsFrom = new int[16];
+            finalStates = new BitSet();
+            numArcs = 0;
+            arcLabels = new byte[16];
+            arcTargets = new int[16];
+            arcOutputs = new int[16];
+
+            // path.get(d) is the state after the first d bytes of the previous term
+            ArrayList<Node> path = new ArrayList<Node>();
+            path.add(new Node());
+            byte[] previous = null;
+            ids = new int[terms.size()];
+            for (int i = 0; i < order.length; i++) {
+                byte[] term = terms.get(order[i]);
+                int common = 0;
+                if (previous != null) {
+                    while (common < previous.length && common < term.length && previous[common] == term[common])
+                        common++;
+                    if (common == term.length && common == previous.length)
+                        throw new IllegalArgumentException("Term added twice: " + new String(term, StandardCharsets.UTF_8));
+                }
+                freezeFrom(path, common);
+                for (int d = common; d < term.length; d++) {
+                    path.get(d).addArc(term[d]);
+                    path.add(new Node());
+                }
+                path.get(term.length).isFinal = true;
+                ids[order[i]] = i;
+                previous = term;
+            }
+            freezeFrom(path, 0);
+            int root = freeze(path.get(0));
+
+            TermAutomaton automaton = new TermAutomaton(terms.size(), root, Arrays.copyOf(arcStart, numStates + 1),
+                    finalStates, Arrays.copyOf(arcLabels, numArcs), Arrays.copyOf(arcTargets, numArcs),
+                    Arrays.copyOf(arcOutputs, numArcs));
+            register = null;
+            return automaton;
+        }
+
+        /**
+         * Returns the term IDs of the terms of the last built automaton, in the
+         * order in which the terms were added.
+         */
+        public int[] getIDs() {
+            return ids;
+        }
+
+        /**
+         * Freezes the nodes of the path deeper than <code>depth</code>, from the
+         * deepest one up, and links each to its parent.
+         */
+        private void freezeFrom(ArrayList<Node> path, int depth) {
+            for (int d = path.size() - 1; d > depth; d--) {
+                Node parent = path.get(d - 1);
+                parent.targets[parent.numArcs - 1] = freeze(path.remove(d));
+            }
+        }
+
+        private static int compareBytes(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (cmp != 0)
+                    return cmp;
+            }
+            return a.length - b.length;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ */
+
+package ir;
+
+import java.util.function.IntFunction;
+
+/**
+ * The distinct terms of one document with the number of times each occurs in
+ * it, as term IDs of a vocabulary in increasing order. The terms themselves are
+ * only looked up in the vocabulary when they are asked for.
+ */
+public class TermVector {
+
+    private final int[] termIDs;
+
+    private final int[] tfs;
+
+    private final IntFunction<String> terms;
+
+    public TermVector(int[] termIDs, int[] tfs, TermAutomaton terms) {
+        this(termIDs, tfs, terms::getTerm);
+    }
+
+    /** A vector whose term IDs are looked up with <code>terms</code>. */
+    public TermVector(int[] termIDs, int[] tfs, IntFunction<String> terms) {
+        this.termIDs = termIDs;
+        this.tfs = tfs;
+        this.terms = terms;
+    }
+
+    /** Number of distinct terms of the document. */
+    public int size() {
+        return termIDs.length;
+    }
+
+    public int getTermID(int i) {
+        return termIDs[i];
+    }
+
+    public String getTerm(int i) {
+        return terms.apply(termIDs[i]);
+    }
+
+    /** Number of occurrences of the i:th term in the document. */
+    public int getTf(int i) {
+        return tfs[i];
+    }
+}
@@ -14,6 +14,8 @@ import java.io.FileReader;
 import java.util.List;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.regex.PatternSyntaxException;
@@ -23,9 +25,22 @@ import java.lang.System;
 
 /** 
  *  This class performs tokenization of UTF-8 encoded text files. 
+ *
+ *  Tokens can be read one at a time as Strings with nextToken(), or
+ *  all at once with tokenize(), which hands each token to a TokenSink
+ *  as a slice of the buffer, without creating a String for it.
  */
 public class Tokenizer {
 
+    /**
+     *  Receives the tokens found by tokenize(). The characters of the
+     *  token are <code>buf[start] .. buf[start+length-1]</code>; the
+     *  buffer is reused, so they must be copied if they are kept.
+     */
+    public interface TokenSink {
+        void token( char[] buf, int start, int length );
+    }
+
     /**
      *  This flag should be set to 'true' if all letters should be
      *  turned into lowercase.
@@ -65,14 +80,35 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
+    /** @code{true} if the current token only has letters and digits. */
+    boolean token_plain = true;
+
     /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    ArrayDeque<String> token_queue = new ArrayDeque<String>();
+
+    /** Adds the tokens to the queue. */
+    private final TokenSink queue_sink = ( b, start, length ) -> token_queue.add( new String( b, start, length ));
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    List<Pattern> patterns = null;
+
+    /** 
+     *  @code{false} if no pattern can match a string of only letters
+     *  and digits, so that such tokens need not be matched against them.
+     */
+    boolean patterns_match_plain = false;
+
+    /** The patterns read so far, by file name. */
+    private static final ConcurrentHashMap<String,PatternSet> pattern_sets = new ConcurrentHashMap<String,PatternSet>();
+
+    /** The compiled patterns of a pattern file. */
+    private static class PatternSet {
+        final ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        boolean match_plain = false;
+    }
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -100,7 +136,10 @@ public class Tokenizer {
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
         if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+            // Patterns are compiled once per file, not once per document
+            PatternSet set = pattern_sets.computeIfAbsent( pattern_file, Tokenizer::readPatterns );
+            patterns = set.patterns;
+            patterns_match_plain = set.match_plain;
         }
     }
 
@@ -124,15 +163,15 @@ public class Tokenizer {
     /**
      *  Read the patterns that match non-standard words  
      */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
+    private static PatternSet readPatterns( String filename ) {
+        PatternSet set = new PatternSet();
         String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
             while (( line = in.readLine()) != null ) {
                 line = line.trim();
                 if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
+                    set.patterns.add( Pattern.compile( line ));
+                    set.match_plain |= mayMatchPlain( line );
                 }
             }
         }
@@ -142,6 +181,185 @@ public class Tokenizer {
         catch ( PatternSyntaxException e ) {
             System.err.println( "ERROR: Malformed regular expression: " + line );
         }
+        return set;
+    }
+
+
+    /**
+     *  Returns @code{false} if the regular expression cannot match any
+     *  string of only letters and digits, that is, if every match must
+     *  contain some other character. The answer errs on the safe side:
+     *  constructs that are not understood are assumed to match.
+     */
+    static boolean mayMatchPlain( String regex ) {
+        try {
+            RegexScanner scanner = new RegexScanner( regex );
+            boolean may = scanner.alternation();
+            return may || scanner.pos < regex.length();
+        }
+        catch ( RuntimeException e ) {
+            return true;
+        }
+    }
+
+
+    /**
+     *  Walks a regular expression and finds out whether a part of it
+     *  can match letters and digits only. Every method consumes one
+     *  construct and returns @code{true} if it can.
+     */
+    private static class RegexScanner {
+        final String re;
+        int pos = 0;
+
+        RegexScanner( String re ) {
+            this.re = re;
+        }
+
+        boolean alternation() {
+            boolean may = concatenation();
+            while ( pos < re.length() && re.charAt( pos ) == '|' ) {
+                pos++;
+                boolean branch = concatenation();
+                may = may || branch;
+            }
+            return may;
+        }
+
+        boolean concatenation() {
+            boolean may = true;
+            while ( pos < re.length() && re.charAt( pos ) != '|' && re.charAt( pos ) != ')' ) {
+                boolean atom = atom();
+                // An atom that may occur zero times does not need to match
+                if ( quantifier() > 0 && !atom ) 
+                    may = false;
+            }
+            return may;
+        }
+
+        boolean atom() {
+            char c = re.charAt( pos++ );
+            switch ( c ) {
+            case '(':
+                return group();
+            case '[':
+                return charClass();
+            case '\\':
+                return escape();
+            case '.': case '^': case '$':
+                return true;
+            default:
+                return Character.isLetterOrDigit( c );
+            }
+        }
+
+        boolean group() {
+            boolean zero_width = false;
+            if ( re.startsWith( "?:", pos )) {
+                pos += 2;
+            }
+            else if ( re.startsWith( "?=", pos ) || re.startsWith( "?!", pos )) {
+                pos += 2;
+                zero_width = true;
+            }
+            else if ( re.startsWith( "?<=", pos ) || re.startsWith( "?<!", pos )) {
+                pos += 3;
+                zero_width = true;
+            }
+            else if ( re.startsWith( "?<", pos )) {
+                // A named group
+                pos = re.indexOf( '>', pos ) + 1;
+                if ( pos == 0 ) 
+                    throw new IllegalArgumentException( re );
+            }
+            else if ( re.startsWith( "?", pos )) {
+                // Flags (which may change what the rest means) or an atomic group
+                throw new IllegalArgumentException( re );
+            }
+            boolean may = alternation();
+            if ( pos >= re.length() || re.charAt( pos++ ) != ')' ) 
+                throw new IllegalArgumentException( re );
+            return zero_width || may;
+        }
+
+        boolean charClass() {
+            boolean may = false;
+            if ( re.charAt( pos ) == '^' ) {
+                pos++;
+                may = true;
+            }
+            boolean first = true;
+            while ( true ) {
+                char c = re.charAt( pos++ );
+                if ( c == ']' && !first ) 
+                    break;
+                first = false;
+                if ( c == '[' ) {
+                    may |= charClass();
+                }
+                else if ( c == '\\' ) {
+                    // \w, \d, \p{L} etc. may be letters or digits,
+                    // an escaped punctuation character is itself
+                    if ( Character.isLetterOrDigit( re.charAt( pos++ ))) 
+                        may = true;
+                }
+                else if ( c == '&' || ( c == '-' && re.charAt( pos ) != ']' )) {
+                    // Intersections and ranges
+                    may = true;
+                }
+                else if ( Character.isLetterOrDigit( c )) {
+                    may = true;
+                }
+            }
+            return may;
+        }
+
+        boolean escape() {
+            char c = re.charAt( pos++ );
+            if ( c == 'Q' || c == 'E' ) {
+                throw new IllegalArgumentException( re );
+            }
+            if ( c == 'k' ) {
+                // A named back reference
+                pos = re.indexOf( '>', pos ) + 1;
+                if ( pos == 0 ) 
+                    throw new IllegalArgumentException( re );
+                return true;
+            }
+            // Character classes, anchors, back references and character
+            // codes may all match letters or digits (or nothing)
+            return Character.isLetterOrDigit( c );
+        }
+
+        /** Consumes a quantifier, if there is one, and returns its minimum. */
+        int quantifier() {
+            if ( pos >= re.length() ) 
+                return 1;
+            int min;
+            char c = re.charAt( pos );
+            if ( c == '*' || c == '?' ) {
+                pos++;
+                min = 0;
+            }
+            else if ( c == '+' ) {
+                pos++;
+                min = 1;
+            }
+            else if ( c == '{' ) {
+                int end = re.indexOf( '}', pos );
+                String bounds = re.substring( pos + 1, end );
+                int comma = bounds.indexOf( ',' );
+                min = Integer.parseInt( comma < 0 ? bounds : bounds.substring( 0, comma ));
+                pos = end + 1;
+            }
+            else {
+                return 1;
+            }
+            // Reluctant and possessive quantifiers
+            if ( pos < re.length() && ( re.charAt( pos ) == '?' || re.charAt( pos ) == '+' )) 
+                pos++;
+            return min;
+        }
     }
 
 
@@ -182,12 +400,8 @@ public class Tokenizer {
      *  read, and @code{false} otherwise.
      */
     public boolean hasMoreTokens() throws IOException {
-        if ( !started_reading ) {
-            readTokens();
-            started_reading = true;
-        }
-        if ( token_queue.size() == 0 ) 
-            return readTokens();
+        if ( token_queue.isEmpty() ) 
+            return readTokens( queue_sink );
         else 
             return true;
     }
@@ -198,46 +412,78 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
-                return null;
+        if ( token_queue.isEmpty() && !readTokens( queue_sink )) 
+            return null;
+        return token_queue.poll();
+    }
+
+
+    /**
+     *  Reads all remaining tokens and hands them to the sink, in the
+     *  order in which nextToken() would return them.
+     */
+    public void tokenize( TokenSink sink ) throws IOException {
+        while ( !token_queue.isEmpty() ) {
+            String t = token_queue.poll();
+            sink.token( t.toCharArray(), 0, t.length() );
         }
-        else {
-            return token_queue.remove( 0 );
+        while ( readTokens( sink )) {
         }
     }
 
 
     /**
-     *  Reads the next token. 
+     *  Reads up to the end of the next token (or tokens, if the
+     *  characters between two separators make up several), and hands
+     *  them to the sink. Returns @code{false} at the end of input.
      */ 
-    private boolean readTokens() throws IOException {
+    private boolean readTokens( TokenSink sink ) throws IOException {
         if ( !started_reading ) {
             refillBuffer( 0 );
             started_reading = true;
         }
-        boolean token_added_to_queue = false;
-        while ( buf[ptr] != 0 ) {
-            if ( token_start < 0 ) {
-                if ( normalize( buf, ptr )) {
+        boolean token_added = false;
+        char c;
+        while (( c = buf[ptr] ) != 0 ) {
+            // Letters, digits and punctuation can occur in tokens. ASCII
+            // characters are normalized here, others by normalize().
+            boolean in_token;
+            boolean plain = true;
+            if ( c < 128 ) {
+                if ( c >= 'A' && c <= 'Z' ) {
+                    if ( case_folding ) 
+                        buf[ptr] = (char)( c + ( 'a' - 'A' ));
+                    in_token = true;
+                }
+                else if (( c >= 'a' && c <= 'z' ) || ( c >= '0' && c <= '9' )) {
+                    in_token = true;
+                }
+                else {
+                    in_token = c >= '!' && c <= '~';
+                    plain = false;
+                }
+            }
+            else {
+                in_token = normalize( buf, ptr );
+            }
+
+            if ( in_token ) {
+                if ( token_start < 0 ) {
                     // A token starts here
                     token_start = ptr;
+                    token_plain = plain;
+                }
+                else {
+                    token_plain &= plain;
                 }
                 ptr++;
             }
             else {
-                if ( normalize( buf, ptr )) {
-                    // We're in the middle of a token
-                    ptr++;
-                }
-                else {
-                    // Check for non-standard words
-                    token_added_to_queue = addTokensToQueue();
+                if ( token_start >= 0 ) {
+                    token_added = addTokens( sink );
                     token_start = -1;
-                    ptr++;
                 }
+                ptr++;
             }
             if ( ptr == BUFFER_LENGTH ) {
                 // The buffer has been read, so refill it
@@ -255,7 +501,7 @@ public class Tokenizer {
                     ptr = 0;
                 }
             }
-            if ( token_added_to_queue ) {
+            if ( token_added ) {
                 return true;
             }
         }
@@ -265,14 +511,25 @@ public class Tokenizer {
 
 
     /**
-     *  Adds token to the queue
+     *  Hands the tokens of the characters from token_start up to ptr to
+     *  the sink. Plain words, which make up most of a text, are a token
+     *  of their own unless a pattern might match them.
      */
-    private boolean addTokensToQueue() {
-        if ( token_start < 0 ) {
-            return false;
+    private boolean addTokens( TokenSink sink ) {
+        if ( token_plain && !patterns_match_plain ) {
+            sink.token( buf, token_start, ptr-token_start );
+            return true;
         }
-        String s = new String( buf, token_start, ptr-token_start );
+        return addTokens( token_start, ptr, sink );
+    }
+
+
+    /**
+     *  Hands the tokens of <code>buf[start] .. buf[end-1]</code> to the sink.
+     */
+    private boolean addTokens( int start, int end, TokenSink sink ) {
         if ( patterns != null ) {
+            String s = new String( buf, start, end-start );
             // Now let's see if the string s matches one of the patterns 
             // for non-standard words
             for ( Pattern p : patterns ) {
@@ -281,59 +538,126 @@ public class Tokenizer {
                     // The string contains a non-standard word. First check the prefix 
                     // before the matching substring, then add the non-standard word  
                     // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
+                    addStandardTokens( start, start + m.start(), sink );
+                    sink.token( buf, start + m.start(), m.end()-m.start() );
+                    addTokens( start + m.end(), end, sink );
                     return true;
                 }
             }
         }
         // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        return addStandardTokens( start, end, sink );
     }
 
 
     /**
-     *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  Hands the standard tokens (i.e. tokens not matching any regular
+     *  expression) of <code>buf[start] .. buf[end-1]</code> to the sink.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokens( int start, int end, TokenSink sink ) {
+        // This string does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
+        int word_start = start;
+        for ( int i=start; i<end; i++ ) {
+            if ( punctuation( buf[i] )) {
                 // The string before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i > word_start ) {
+                    sink.token( buf, word_start, i-word_start );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    sink.token( buf, i, 1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                word_start = i+1;
             }
         }
         // The string after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( end > word_start ) {
+            sink.token( buf, word_start, end-word_start );
             tokens_found = true;
         }   
         return tokens_found;
     }
     
 
+    /**
+     *  Turns tokens handed to a TokenSink into Strings. A token that
+     *  has been seen recently gets the same String as before, so the
+     *  frequent words of a text are not allocated again and again.
+     */
+    public static class StringCache {
+
+        /** When this many Strings are cached, the cache is emptied. */
+        public static final int MAX_SIZE = 1 << 16;
+
+        /** Open addressing hash table. */
+        private String[] table = new String[1024];
+
+        private int size = 0;
+
+        public String get( char[] buf, int start, int length ) {
+            int h = 0;
+            for ( int i=start; i<start+length; i++ ) {
+                h = 31*h + buf[i];
+            }
+            int mask = table.length - 1;
+            int slot = ( h ^ ( h >>> 16 )) & mask;
+            String s;
+            while (( s = table[slot] ) != null ) {
+                if ( s.hashCode() == h && equals( s, buf, start, length )) 
+                    return s;
+                slot = ( slot + 1 ) & mask;
+            }
+            s = new String( buf, start, length );
+            if ( size == MAX_SIZE ) {
+                Arrays.fill( table, null );
+                size = 0;
+            }
+            else if ( 2 * ( size + 1 ) > table.length ) {
+                grow();
+            }
+            insert( s );
+            return s;
+        }
+
+        private static boolean equals( String s, char[] buf, int start, int length ) {
+            if ( s.length() != length ) 
+                return false;
+            for ( int i=0; i<length; i++ ) {
+                if ( s.charAt( i ) != buf[start+i] ) 
+                    return false;
+            }
+            return true;
+        }
+
+        private void insert( String s ) {
+            int h = s.hashCode();
+            int mask = table.length - 1;
+            int slot = ( h ^ ( h >>> 16 )) & mask;
+            while ( table[slot] != null ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            table[slot] = s;
+            size++;
+        }
+
+        private void grow() {
+            String[] old = table;
+            table = new String[2 * old.length];
+            size = 0;
+            for ( String s : old ) {
+                if ( s != null ) 
+                    insert( s );
+            }
+        }
+    }
+
+
     /**
      *  Refills the buffer and adds end_of_file "\0" at the appropriate place.
      */